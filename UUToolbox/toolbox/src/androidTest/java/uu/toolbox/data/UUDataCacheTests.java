@@ -1,8 +1,12 @@
 package uu.toolbox.data;
 
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import org.json.JSONObject;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.FixMethodOrder;
@@ -10,10 +14,20 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.MethodSorters;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import uu.toolbox.core.UUDate;
+import uu.toolbox.core.UUFile;
 import uu.toolbox.core.UURandom;
 import uu.toolbox.core.UUThread;
 
@@ -22,7 +36,7 @@ import uu.toolbox.core.UUThread;
 public class UUDataCacheTests
 {
     private static final String TEST_FILE = "test_file.dat";
-    private static final String TEST_FILE_SANITIZED = "test-file-dat";
+    private static final String UPGRADE_DB_NAME = "uu_data_cache_upgrade_test";
 
     private static UUDataCache dataCache;
 
@@ -72,7 +86,7 @@ public class UUDataCacheTests
         Assert.assertEquals("Expect cached key count to be one", 1, keys.size());
 
         String key = keys.get(0);
-        Assert.assertEquals("Expect key to be our test file", TEST_FILE_SANITIZED, key);
+        Assert.assertEquals("Expect key to be our test file", TEST_FILE, key);
     }
 
     @Test
@@ -238,4 +252,806 @@ public class UUDataCacheTests
         keys = dc.listKeys();
         Assert.assertEquals("Expect count after purge to be 10", count, keys.size());
     }
+
+    @Test
+    public void test_0010_testMemoryCacheLimit() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        int limit = dc.getMemoryCacheLimit();
+        dc.setMemoryCacheLimit(1024);
+
+        for (int i = 0; i < 4; i++)
+        {
+            byte[] data = UURandom.randomBytes(512);
+            dc.setData(data, String.valueOf(i));
+        }
+
+        Assert.assertTrue("Expect memory tier to stay within its byte limit", dc.getMemoryCacheSize() <= 1024);
+
+        byte[] evicted = dc.getData("0");
+        Assert.assertNotNull("Expect evicted entries to still load from disk", evicted);
+        Assert.assertEquals(512, evicted.length);
+
+        dc.removeData("0");
+        Assert.assertNull("Expect removed data to be gone from both tiers", dc.getData("0"));
+
+        dc.setMemoryCacheLimit(limit);
+    }
+
+    @Test
+    public void test_0011_testDiskCacheLimit() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        long limit = dc.getDiskCacheLimit();
+        dc.setDiskCacheLimit(4096);
+
+        int count = 16;
+        for (int i = 0; i < count; i++)
+        {
+            byte[] data = UURandom.randomBytes(512);
+            dc.setData(data, String.valueOf(i));
+            UUThread.safeSleep("test_0011_testDiskCacheLimit", 5);
+        }
+
+        // Trimming happens on a background thread
+        UUThread.safeSleep("test_0011_testDiskCacheLimit", 1000);
+
+        Assert.assertTrue("Expect disk usage to be within the limit", dc.getDiskCacheSize() <= 4096);
+        Assert.assertFalse("Expect oldest entry to be evicted", dc.doesDataExist("0"));
+        Assert.assertTrue("Expect newest entry to be kept", dc.doesDataExist(String.valueOf(count - 1)));
+
+        dc.setDiskCacheLimit(limit);
+    }
+
+    @Test
+    public void test_0012_testKeysDoNotCollide() throws Exception
+    {
+        UUDataCacheProtocol dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        // Both of these keys sanitized to the same file name in the original layout
+        String keyOne = "http://thisisaurl.com/image?size=large";
+        String keyTwo = "http://thisisaurl.com/image&size=large";
+
+        byte[] dataOne = UURandom.randomBytes(64);
+        byte[] dataTwo = UURandom.randomBytes(64);
+        dc.setData(dataOne, keyOne);
+        dc.setData(dataTwo, keyTwo);
+
+        Assert.assertNotEquals(UUDataCache.sharedInstance().getDiskFileName(keyOne), UUDataCache.sharedInstance().getDiskFileName(keyTwo));
+        Assert.assertArrayEquals(dataOne, dc.getData(keyOne));
+        Assert.assertArrayEquals(dataTwo, dc.getData(keyTwo));
+
+        ArrayList<String> keys = dc.listKeys();
+        Assert.assertEquals(2, keys.size());
+        Assert.assertTrue(keys.contains(keyOne));
+        Assert.assertTrue(keys.contains(keyTwo));
+    }
+
+    @Test
+    public void test_0013_testStreamingReadWrite() throws Exception
+    {
+        UUDataCacheProtocol dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.removeData(TEST_FILE);
+
+        byte[] data = UURandom.randomBytes(100 * 1024);
+
+        OutputStream os = dc.openOutputStream(TEST_FILE);
+        Assert.assertNotNull("Expect output stream to open", os);
+        os.write(data, 0, data.length / 2);
+
+        Assert.assertFalse("Expect data to not exist until the stream is closed", dc.doesDataExist(TEST_FILE));
+
+        os.write(data, data.length / 2, data.length - (data.length / 2));
+        os.close();
+
+        Assert.assertTrue("Expect data to exist after the stream is closed", dc.doesDataExist(TEST_FILE));
+
+        InputStream is = dc.openInputStream(TEST_FILE);
+        Assert.assertNotNull("Expect input stream to open", is);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) > 0)
+        {
+            bos.write(buffer, 0, bytesRead);
+        }
+        is.close();
+
+        Assert.assertArrayEquals("Expect to stream the same bytes that were written", data, bos.toByteArray());
+
+        MappedByteBuffer mapped = dc.mapData(TEST_FILE);
+        Assert.assertNotNull("Expect data to map", mapped);
+        Assert.assertEquals(data.length, mapped.remaining());
+
+        byte[] mappedBytes = new byte[mapped.remaining()];
+        mapped.get(mappedBytes);
+        Assert.assertArrayEquals("Expect to map the same bytes that were written", data, mappedBytes);
+
+        UUDataCache.CacheOutputStream aborted = (UUDataCache.CacheOutputStream)dc.openOutputStream(TEST_FILE);
+        Assert.assertNotNull(aborted);
+        aborted.write(UURandom.randomBytes(10));
+        aborted.abort();
+
+        Assert.assertArrayEquals("Expect an aborted write to leave existing data alone", data, dc.getData(TEST_FILE));
+    }
+
+    @Test
+    public void test_0014_testConcurrentAccess() throws Exception
+    {
+        final UUDataCacheProtocol dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        final int threadCount = 8;
+        final int iterations = 100;
+        final int payloadSize = 32 * 1024;
+        final String sharedKey = "concurrent_shared";
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int threadIndex = t;
+            Thread thread = new Thread(() ->
+            {
+                String ownKey = "concurrent_" + threadIndex;
+
+                for (int i = 0; i < iterations && failure.get() == null; i++)
+                {
+                    // Every payload is filled with a single value so a torn read is easy to spot
+                    byte[] data = new byte[payloadSize];
+                    Arrays.fill(data, (byte)(threadIndex * iterations + i));
+
+                    dc.setData(data, ownKey);
+                    if (!Arrays.equals(data, dc.getData(ownKey)))
+                    {
+                        failure.set("Thread " + threadIndex + " read back the wrong data for its own key");
+                    }
+
+                    if ((i % 3) == 0)
+                    {
+                        dc.setData(data, sharedKey);
+                    }
+                    else if ((i % 7) == 0)
+                    {
+                        dc.removeData(sharedKey);
+                    }
+
+                    byte[] shared = dc.getData(sharedKey);
+                    if (shared != null && !isUniform(shared, payloadSize))
+                    {
+                        failure.set("Thread " + threadIndex + " read partial data for the shared key");
+                    }
+                }
+            });
+
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Assert.assertNull(failure.get(), failure.get());
+
+        for (int t = 0; t < threadCount; t++)
+        {
+            byte[] data = dc.getData("concurrent_" + t);
+            Assert.assertNotNull(data);
+            Assert.assertTrue(isUniform(data, payloadSize));
+        }
+    }
+
+    @Test
+    public void test_0015_testCompression() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 500; i++)
+        {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item\"},");
+        }
+
+        byte[] text = sb.toString().getBytes("UTF-8");
+        String textKey = "compressed_text";
+
+        HashMap<String, Object> md = new HashMap<>();
+        md.put(UUDataCache.MetaData.MimeType, "application/json; charset=utf-8");
+        dc.setMetaData(md, textKey);
+        dc.setData(text, textKey);
+
+        Assert.assertTrue("Expect text to be stored compressed", dc.getDiskFileName(textKey).length() < text.length);
+        Assert.assertEquals(dc.getDiskFileName(textKey).length(), dc.getDiskCacheSize());
+        Assert.assertArrayEquals(text, dc.getData(textKey));
+        Assert.assertNull("Expect compressed data to not be mappable", dc.mapData(textKey));
+
+        InputStream is = dc.openInputStream(textKey);
+        Assert.assertNotNull(is);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) > 0)
+        {
+            bos.write(buffer, 0, bytesRead);
+        }
+        is.close();
+
+        Assert.assertArrayEquals("Expect to stream the uncompressed bytes", text, bos.toByteArray());
+
+        byte[] random = UURandom.randomBytes(8 * 1024);
+        String randomKey = "uncompressed_random";
+        dc.setData(random, randomKey);
+        Assert.assertEquals("Expect incompressible data to be stored as is", random.length, dc.getDiskFileName(randomKey).length());
+        Assert.assertArrayEquals(random, dc.getData(randomKey));
+
+        String untypedKey = "untyped_text";
+        dc.setData(text, untypedKey);
+        Assert.assertEquals("Expect data of unknown type to be stored as is", text.length, dc.getDiskFileName(untypedKey).length());
+
+        byte[] small = "small".getBytes("UTF-8");
+        dc.setMetaData(md, "small_text");
+        dc.setData(small, "small_text");
+        Assert.assertEquals("Expect data under the threshold to be stored as is", small.length, dc.getDiskFileName("small_text").length());
+    }
+
+    @Test
+    public void test_0016_testDeduplication() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+        dc.setDeduplicationEnabled(true);
+
+        try
+        {
+            byte[] data = UURandom.randomBytes(4096);
+            String keyOne = "http://cdn-one.thisisaurl.com/image.png";
+            String keyTwo = "http://cdn-two.thisisaurl.com/image.png?cb=12345";
+
+            dc.setData(data, keyOne);
+            dc.setData(data, keyTwo);
+
+            Assert.assertEquals("Expect identical data to share a file", dc.getDiskFileName(keyOne), dc.getDiskFileName(keyTwo));
+            Assert.assertEquals("Expect shared data to be counted once", data.length, dc.getDiskCacheSize());
+
+            File shared = dc.getDiskFileName(keyOne);
+
+            dc.removeData(keyOne);
+            Assert.assertTrue("Expect shared file to remain while referenced", shared.exists());
+            Assert.assertArrayEquals(data, dc.getData(keyTwo));
+
+            byte[] other = UURandom.randomBytes(2048);
+            dc.setData(other, keyTwo);
+            Assert.assertFalse("Expect shared file to be deleted with its last reference", shared.exists());
+            Assert.assertArrayEquals(other, dc.getData(keyTwo));
+            Assert.assertEquals(other.length, dc.getDiskCacheSize());
+
+            dc.removeData(keyTwo);
+            Assert.assertEquals(0, dc.getDiskCacheSize());
+        }
+        finally
+        {
+            dc.setDeduplicationEnabled(false);
+        }
+    }
+
+    @Test
+    public void test_0017_testExistenceIndex() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        HashMap<String, Object> md = new HashMap<>();
+        md.put("Foo", "Bar");
+        dc.setMetaData(md, TEST_FILE);
+        Assert.assertFalse("Expect a meta data only entry to not exist", dc.doesDataExist(TEST_FILE));
+
+        byte[] data = UURandom.randomBytes(128);
+        dc.setData(data, TEST_FILE);
+        Assert.assertTrue(dc.doesDataExist(TEST_FILE));
+
+        // Simulate the system clearing the cache folder behind our back
+        dc.setMemoryCacheLimit(1);
+        Assert.assertTrue(dc.getDiskFileName(TEST_FILE).delete());
+        Assert.assertNull(dc.getData(TEST_FILE));
+        Assert.assertFalse("Expect a missing file to drop the index entry", dc.doesDataExist(TEST_FILE));
+
+        dc.setMemoryCacheLimit(UUDataCache.DEFAULT_MEMORY_CACHE_LIMIT);
+    }
+
+    @Test
+    public void test_0018_testAsyncOrdering() throws Exception
+    {
+        final UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        final int count = 20;
+        final CountDownLatch latch = new CountDownLatch(count + 1);
+        final AtomicReference<String> failure = new AtomicReference<>();
+
+        for (int i = 0; i < count; i++)
+        {
+            final byte[] data = UURandom.randomBytes(256);
+            dc.setDataAsync(data, TEST_FILE, null);
+            dc.getDataAsync(TEST_FILE, result ->
+            {
+                if (!Arrays.equals(data, result))
+                {
+                    failure.set("Expect each read to see the write queued before it");
+                }
+
+                latch.countDown();
+            });
+        }
+
+        dc.removeDataAsync(TEST_FILE, null);
+        dc.getDataAsync(TEST_FILE, result ->
+        {
+            if (result != null)
+            {
+                failure.set("Expect a read after a remove to return null");
+            }
+
+            latch.countDown();
+        });
+
+        Assert.assertTrue("Expect async calls to complete", latch.await(10, TimeUnit.SECONDS));
+        Assert.assertNull(failure.get(), failure.get());
+    }
+
+    @Test
+    public void test_0019_testWarmUp() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+        dc.setWarmUpWindow(UUDate.MILLIS_IN_ONE_DAY);
+
+        try
+        {
+            ArrayList<String> keys = new ArrayList<>();
+            for (int i = 0; i < 5; i++)
+            {
+                String key = "warm_up_" + i;
+                keys.add(key);
+                dc.setData(UURandom.randomBytes(1024), key);
+                Assert.assertNotNull(dc.getData(key));
+            }
+
+            dc.saveWarmUpManifest();
+
+            // Empty the memory tier, as on a cold start
+            dc.setMemoryCacheLimit(1);
+            dc.setMemoryCacheLimit(UUDataCache.DEFAULT_MEMORY_CACHE_LIMIT);
+            Assert.assertEquals(0, dc.getMemoryCacheSize());
+
+            dc.preloadWarmUpEntries();
+            Assert.assertEquals("Expect recorded keys to be preloaded", keys.size() * 1024, dc.getMemoryCacheSize());
+        }
+        finally
+        {
+            dc.setWarmUpWindow(UUDataCache.DEFAULT_WARM_UP_WINDOW);
+        }
+    }
+
+    @Test
+    public void test_0020_testStaleRevalidation() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.removeData(TEST_FILE);
+
+        byte[] data = UURandom.randomBytes(57);
+        dc.setData(data, TEST_FILE);
+
+        // Expired with a validator, the data is kept but not served
+        HashMap<String, Object> md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.Validator, "\"v1\"");
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() - 1);
+        dc.setMetaData(md, TEST_FILE);
+
+        Assert.assertTrue(dc.isDataExpired(TEST_FILE));
+        Assert.assertTrue(dc.isDataStale(TEST_FILE));
+        Assert.assertNull("Expect stale data not to be served", dc.getData(TEST_FILE));
+        Assert.assertTrue("Expect stale data to be kept", dc.doesDataExist(TEST_FILE));
+
+        dc.purgeExpiredData();
+        Assert.assertTrue("Expect recently read stale data to survive a purge", dc.doesDataExist(TEST_FILE));
+
+        // Revalidated, the same data is served again
+        md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() + UUDate.MILLIS_IN_ONE_HOUR);
+        dc.setMetaData(md, TEST_FILE);
+
+        Assert.assertFalse(dc.isDataStale(TEST_FILE));
+        Assert.assertArrayEquals(data, dc.getData(TEST_FILE));
+
+        // New data drops the old validator and expiration
+        dc.setData(UURandom.randomBytes(57), TEST_FILE);
+        md = dc.getMetaData(TEST_FILE);
+        Assert.assertFalse(md.containsKey(UUDataCache.MetaData.Validator));
+        Assert.assertFalse(md.containsKey(UUDataCache.MetaData.ExpiresAt));
+
+        // Expired without a validator, the data is removed as before
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() - 1);
+        dc.setMetaData(md, TEST_FILE);
+        Assert.assertFalse(dc.isDataStale(TEST_FILE));
+        Assert.assertNull(dc.getData(TEST_FILE));
+        Assert.assertFalse(dc.doesDataExist(TEST_FILE));
+    }
+
+    @Test
+    public void test_0021_testGetStaleData() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.removeData(TEST_FILE);
+
+        byte[] data = UURandom.randomBytes(57);
+        dc.setData(data, TEST_FILE);
+        Assert.assertArrayEquals("Expect fresh data from getStaleData", data, dc.getStaleData(TEST_FILE));
+
+        HashMap<String, Object> md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.Validator, "\"v1\"");
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() - 1);
+        dc.setMetaData(md, TEST_FILE);
+
+        Assert.assertNull(dc.getData(TEST_FILE));
+        Assert.assertArrayEquals("Expect stale data from getStaleData", data, dc.getStaleData(TEST_FILE));
+        Assert.assertTrue("Expect reading stale data to keep it stale", dc.isDataStale(TEST_FILE));
+
+        dc.removeData(TEST_FILE);
+        Assert.assertNull(dc.getStaleData(TEST_FILE));
+    }
+
+    @Test
+    public void test_0022_testCompressedStreamingWrite() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.setCompressionEnabled(true);
+        dc.removeData(TEST_FILE);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++)
+        {
+            sb.append("line ").append(i).append('\n');
+        }
+
+        byte[] data = sb.toString().getBytes("UTF-8");
+
+        OutputStream os = dc.openOutputStream(TEST_FILE, "text/plain; charset=utf-8");
+        Assert.assertNotNull(os);
+
+        // Write in uneven chunks, like a network read loop
+        for (int offset = 0; offset < data.length; offset += 777)
+        {
+            os.write(data, offset, Math.min(777, data.length - offset));
+        }
+
+        os.close();
+
+        Assert.assertArrayEquals("Expect inflated data from getData", data, dc.getData(TEST_FILE));
+        Assert.assertNull("Expect compressed data not to be mapped", dc.mapData(TEST_FILE));
+
+        InputStream is = dc.openInputStream(TEST_FILE);
+        Assert.assertNotNull(is);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int bytesRead;
+        while ((bytesRead = is.read(buffer)) != -1)
+        {
+            bos.write(buffer, 0, bytesRead);
+        }
+
+        is.close();
+        Assert.assertArrayEquals("Expect inflated data from openInputStream", data, bos.toByteArray());
+    }
+
+    @Test
+    public void test_0023_testPartialData() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.removeData(TEST_FILE);
+        dc.removePartialData(TEST_FILE);
+
+        byte[] old = UURandom.randomBytes(100);
+        dc.setData(old, TEST_FILE);
+
+        byte[] data = UURandom.randomBytes(4096);
+        String validator = "\"abc123\"";
+
+        // Interrupted part way through
+        UUDataCache.CacheOutputStream os = dc.openPartialOutputStream(TEST_FILE, validator, 0);
+        Assert.assertNotNull(os);
+        os.write(data, 0, 1500);
+        os.abort();
+
+        Assert.assertEquals(validator, dc.getPartialDataValidator(TEST_FILE));
+        Assert.assertEquals(1500, dc.getPartialDataLength(TEST_FILE));
+        Assert.assertArrayEquals("Expect the old object to be untouched", old, dc.getData(TEST_FILE));
+
+        Assert.assertNull("Expect a different validator not to resume", dc.openPartialOutputStream(TEST_FILE, "\"other\"", 1500));
+        Assert.assertNull("Expect a gap not to resume", dc.openPartialOutputStream(TEST_FILE, validator, 2000));
+
+        // Resume a little before the end, the overlap is rewritten
+        os = dc.openPartialOutputStream(TEST_FILE, validator, 1000);
+        Assert.assertNotNull(os);
+        os.write(data, 1000, data.length - 1000);
+        os.close();
+
+        Assert.assertArrayEquals("Expect the finished data to replace the object", data, dc.getData(TEST_FILE));
+        Assert.assertNull(dc.getPartialDataValidator(TEST_FILE));
+        Assert.assertEquals(0, dc.getPartialDataLength(TEST_FILE));
+    }
+
+    @Test
+    public void test_0024_testExistenceBeforeIndexLoad() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        byte[] data = UURandom.randomBytes(128);
+        dc.setData(data, TEST_FILE);
+        Assert.assertTrue(dc.doesDataExist(TEST_FILE));
+
+        // Holding the load lock stands in for a worker that is still reading the index.  The
+        // lock is reentrant, so a check that loaded the index itself would answer true here.
+        synchronized (dc.metaDataIndexLoadLock)
+        {
+            dc.unloadMetaDataIndex();
+
+            Assert.assertFalse(dc.isIndexLoaded());
+            Assert.assertFalse("Expect no answer from the database before the index loads", dc.doesDataExist(TEST_FILE));
+            Assert.assertFalse(dc.isDataExpired(TEST_FILE));
+            Assert.assertFalse(dc.isDataStale(TEST_FILE));
+            Assert.assertNull(dc.getMimeType(TEST_FILE));
+            Assert.assertEquals(0, dc.getDataTimestamp(TEST_FILE));
+        }
+
+        // Reading the data needs the index and loads it
+        Assert.assertArrayEquals(data, dc.getData(TEST_FILE));
+        Assert.assertTrue(dc.isIndexLoaded());
+        Assert.assertTrue("Expect the entry once the index has loaded", dc.doesDataExist(TEST_FILE));
+    }
+
+    @Test
+    public void test_0025_testDerivedEntriesRemovedWithSource() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        String derived = UUDataCache.getDerivedKey(TEST_FILE, "small");
+        String other = UUDataCache.getDerivedKey(TEST_FILE + "2", "small");
+
+        dc.setData(UURandom.randomBytes(128), TEST_FILE);
+        dc.setData(UURandom.randomBytes(64), derived);
+        dc.setData(UURandom.randomBytes(64), other);
+
+        dc.removeData(TEST_FILE);
+        Assert.assertFalse("Expect derived data to go with its source", dc.doesDataExist(derived));
+        Assert.assertTrue("Expect data derived from another key to stay", dc.doesDataExist(other));
+
+        // Purged along with an expired source
+        dc.setData(UURandom.randomBytes(128), TEST_FILE);
+        dc.setData(UURandom.randomBytes(64), derived);
+
+        HashMap<String, Object> md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() - 1000);
+        dc.setMetaData(md, TEST_FILE);
+
+        dc.purgeExpiredData();
+        Assert.assertFalse(dc.doesDataExist(TEST_FILE));
+        Assert.assertFalse("Expect derived data to be purged with its source", dc.doesDataExist(derived));
+        Assert.assertTrue(dc.doesDataExist(other));
+    }
+
+    @Test
+    public void test_0026_testTypedColumns() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        dc.setData(UURandom.randomBytes(128), TEST_FILE);
+
+        HashMap<String, Object> md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.MimeType, "text/plain");
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() + UUDate.MILLIS_IN_ONE_HOUR);
+        md.put(UUDataCache.MetaData.Validator, "\"v1\"");
+        dc.setMetaData(md, TEST_FILE);
+
+        Assert.assertEquals("Expect the index to follow a meta data write", "text/plain", dc.getMimeType(TEST_FILE));
+        Assert.assertFalse(dc.isDataExpired(TEST_FILE));
+
+        // Reloading the index reads the typed columns back from the database
+        dc.unloadMetaDataIndex();
+        dc.getDiskFileName(TEST_FILE);
+        Assert.assertEquals("text/plain", dc.getMimeType(TEST_FILE));
+        Assert.assertFalse(dc.isDataExpired(TEST_FILE));
+
+        md = dc.getMetaData(TEST_FILE);
+        md.put(UUDataCache.MetaData.ExpiresAt, System.currentTimeMillis() - 1000);
+        dc.setMetaData(md, TEST_FILE);
+        Assert.assertTrue("Expect a per entry expiration to override the interval", dc.isDataExpired(TEST_FILE));
+        Assert.assertTrue("Expect an expired entry with a validator to be stale", dc.isDataStale(TEST_FILE));
+
+        dc.unloadMetaDataIndex();
+        dc.getDiskFileName(TEST_FILE);
+        Assert.assertTrue("Expect expires_at and validator to be stored", dc.isDataStale(TEST_FILE));
+
+        md = dc.getMetaData(TEST_FILE);
+        md.remove(UUDataCache.MetaData.ExpiresAt);
+        dc.setMetaData(md, TEST_FILE);
+        Assert.assertFalse("Expect the global interval without ExpiresAt", dc.isDataExpired(TEST_FILE));
+    }
+
+    @Test
+    public void test_0027_testUpgradeFromVersionTwo() throws Exception
+    {
+        Context ctx = InstrumentationRegistry.getContext().getApplicationContext();
+        ctx.deleteDatabase(UPGRADE_DB_NAME);
+
+        File folder = new File(ctx.getCacheDir(), "UUDataCacheUpgradeTest");
+        UUFile.deleteFile(folder);
+        UUFile.createFoldersIfNeeded(folder);
+
+        long now = System.currentTimeMillis();
+        String freshKey = "upgradeFresh";
+        String oldKey = "upgradeOld";
+        byte[] data = UURandom.randomBytes(256);
+
+        // A version 2 database, before the typed columns, with files in the flat layout
+        SQLiteDatabase db = ctx.openOrCreateDatabase(UPGRADE_DB_NAME, Context.MODE_PRIVATE, null);
+        db.execSQL(UUSql.buildCreateSql(new UUDataCache.UUDataCacheMetaData(), 2));
+        insertVersionTwoRow(db, freshKey, now - UUDate.MILLIS_IN_ONE_DAY, data.length);
+        insertVersionTwoRow(db, oldKey, now - (2 * UUDate.MILLIS_IN_ONE_WEEK), data.length);
+        db.setVersion(2);
+        db.close();
+
+        Assert.assertTrue(UUFile.writeFile(new File(folder, freshKey), data));
+        Assert.assertTrue(UUFile.writeFile(new File(folder, oldKey), data));
+
+        UUDataCache dc = new UUDataCache(ctx, folder, UUDate.MILLIS_IN_ONE_WEEK, UUDataCache.DEFAULT_MEMORY_CACHE_LIMIT, new UpgradeDbDef());
+
+        try
+        {
+            for (int i = 0; i < 50 && !dc.doesDataExist(freshKey); i++)
+            {
+                Thread.sleep(100);
+            }
+
+            Assert.assertTrue("Expect upgraded rows in the index", dc.isIndexLoaded());
+            Assert.assertTrue("Expect legacy files to be migrated", dc.doesDataExist(freshKey));
+            Assert.assertFalse("Expect rows without expires_at to use the interval", dc.isDataExpired(freshKey));
+            Assert.assertTrue("Expect rows without expires_at to use the interval", dc.isDataExpired(oldKey));
+            Assert.assertEquals("Expect the meta data blob to survive", "text/plain", dc.getMetaData(freshKey).get(UUDataCache.MetaData.MimeType));
+            Assert.assertArrayEquals(data, dc.getData(freshKey));
+        }
+        finally
+        {
+            ctx.deleteDatabase(UPGRADE_DB_NAME);
+            UUFile.deleteFile(folder);
+        }
+    }
+
+    @Test
+    public void test_0028_testPurgeQuery() throws Exception
+    {
+        UUDataCache dc = UUDataCache.sharedInstance();
+        dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        dc.clearCache();
+
+        String old = "purge_old";
+        String pinned = "purge_pinned";
+        String fresh = "purge_fresh";
+        String expiresAt = "purge_expires_at";
+        String stale = "purge_stale";
+
+        dc.setData(UURandom.randomBytes(100), old);
+        dc.setData(UURandom.randomBytes(100), pinned);
+        setExpiresAt(dc, pinned, System.currentTimeMillis() + UUDate.MILLIS_IN_ONE_HOUR, null);
+
+        long interval = 2000;
+        UUThread.safeSleep("test_0028_testPurgeQuery", interval + 500);
+
+        // Written after the sleep, so all three are fresh by the interval
+        dc.setData(UURandom.randomBytes(100), fresh);
+        dc.setData(UURandom.randomBytes(100), expiresAt);
+        setExpiresAt(dc, expiresAt, System.currentTimeMillis() - 1, null);
+        dc.setData(UURandom.randomBytes(100), stale);
+        setExpiresAt(dc, stale, System.currentTimeMillis() - 1, "\"v1\"");
+
+        dc.setDataExpirationInterval(interval);
+
+        try
+        {
+            dc.purgeExpiredData();
+
+            Assert.assertFalse("Expect rows past the interval to be purged", dc.doesDataExist(old));
+            Assert.assertTrue("Expect a later expires_at to override the interval", dc.doesDataExist(pinned));
+            Assert.assertTrue("Expect fresh rows to be kept", dc.doesDataExist(fresh));
+            Assert.assertFalse("Expect a past expires_at to override the interval", dc.doesDataExist(expiresAt));
+            Assert.assertTrue("Expect recently read stale rows to be skipped", dc.doesDataExist(stale));
+            Assert.assertEquals(3, dc.listKeys().size());
+        }
+        finally
+        {
+            dc.setDataExpirationInterval(UUDate.MILLIS_IN_ONE_WEEK);
+        }
+    }
+
+    private static void setExpiresAt(final UUDataCache dc, final String key, final long expiresAt, final String validator)
+    {
+        HashMap<String, Object> md = dc.getMetaData(key);
+        md.put(UUDataCache.MetaData.ExpiresAt, expiresAt);
+
+        if (validator != null)
+        {
+            md.put(UUDataCache.MetaData.Validator, validator);
+        }
+
+        dc.setMetaData(md, key);
+    }
+
+    @UUSqlDatabase(name = UPGRADE_DB_NAME, version = 7, models = { UUDataCache.UUDataCacheMetaData.class })
+    private static class UpgradeDbDef implements UUDatabaseDefinition
+    {
+
+    }
+
+    private static void insertVersionTwoRow(final SQLiteDatabase db, final String key, final long timestamp, final long size) throws Exception
+    {
+        JSONObject md = new JSONObject();
+        md.put(UUDataCache.MetaData.MimeType, "text/plain");
+        md.put(UUDataCache.MetaData.Timestamp, timestamp);
+
+        ContentValues cv = new ContentValues();
+        cv.put(UUDataCache.UUDataCacheMetaData.NAME_COLUMN, key);
+        cv.put(UUDataCache.UUDataCacheMetaData.TIMESTAMP_COLUMN, timestamp);
+        cv.put(UUDataCache.UUDataCacheMetaData.META_DATA_COLUMN, md.toString());
+        cv.put(UUDataCache.UUDataCacheMetaData.SIZE_COLUMN, size);
+        cv.put(UUDataCache.UUDataCacheMetaData.LAST_ACCESS_COLUMN, timestamp);
+        db.insert(UUDataCache.UUDataCacheMetaData.TABLE_NAME, null, cv);
+    }
+
+    private static boolean isUniform(final byte[] data, final int expectedLength)
+    {
+        if (data.length != expectedLength)
+        {
+            return false;
+        }
+
+        for (byte b : data)
+        {
+            if (b != data[0])
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
 }
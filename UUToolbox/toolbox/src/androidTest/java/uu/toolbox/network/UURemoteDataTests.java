@@ -10,6 +10,7 @@ import android.test.ApplicationTestCase;
 
 import junit.framework.Assert;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
 
@@ -148,4 +149,119 @@ public class UURemoteDataTests extends ApplicationTestCase<Application>
         byte[] data = UURemoteData.sharedInstance().getData(key);
         Assert.assertNotNull("Expect data after download to not be null", data);
     }
+
+    public void test_0003_fetchWithCoalescedCallbacks() throws Exception
+    {
+        final String key = TEST_URL;
+        UUDataCache.sharedInstance().removeData(key);
+
+        final int callerCount = 10;
+        countdownLatch = new CountDownLatch(callerCount);
+        final ArrayList<byte[]> results = new ArrayList<>();
+
+        for (int i = 0; i < callerCount; i++)
+        {
+            UURemoteData.sharedInstance().getData(key, data ->
+            {
+                synchronized (results)
+                {
+                    results.add(data);
+                }
+
+                countdownLatch.countDown();
+            });
+        }
+
+        countdownLatch.await();
+
+        Assert.assertEquals(callerCount, results.size());
+        for (byte[] data : results)
+        {
+            Assert.assertNotNull("Expect every caller to receive the data", data);
+
+            // Every waiter is handed the buffer from the one shared download
+            Assert.assertSame("Expect a single download for all callers", results.get(0), data);
+        }
+    }
+
+    public void test_0004_backoffAfterFailure() throws Exception
+    {
+        final String key = "http://this.is.a.fake.url/backoff.jpg";
+        dataCache.clearLastFailureTimes();
+
+        countdownLatch = new CountDownLatch(1);
+        dataCache.getData(key, data -> countdownLatch.countDown());
+        countdownLatch.await();
+
+        UURemoteData.DownloadFailure failure = dataCache.getDownloadFailure(key);
+        Assert.assertNotNull("Expect the failure to be recorded", failure);
+        Assert.assertEquals(UURemoteData.FailureCause.Network, failure.cause);
+        Assert.assertEquals(1, failure.failureCount);
+        Assert.assertTrue("Expect a retry time in the future", failure.retryTime > failure.lastFailureTime);
+        Assert.assertTrue("Expect the retry to be within the ignore time", failure.retryTime - failure.lastFailureTime <= dataCache.getFailedDownloadIgnoreTime());
+
+        // A request during the backoff is parked rather than downloaded
+        dataCache.getData(key, data -> { });
+        Thread.sleep(1000);
+        Assert.assertFalse("Expect no download during backoff", dataCache.isDownloadPending(key));
+        Assert.assertTrue("Expect the parked request to be cancellable", dataCache.cancelDownload(key));
+
+        dataCache.clearLastFailureTimes();
+        Assert.assertNull("Expect the failure table to be cleared", dataCache.getDownloadFailure(key));
+    }
+
+    public void test_0005_coalescedNotifications() throws Exception
+    {
+        final int keyCount = 20;
+        final ArrayList<String> keys = new ArrayList<>();
+        for (int i = 0; i < keyCount; i++)
+        {
+            keys.add("http://this.is.a.fake.url/batch_" + i + ".jpg");
+        }
+
+        final ArrayList<Intent> received = new ArrayList<>();
+        countdownLatch = new CountDownLatch(1);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(UURemoteData.Notifications.DataDownloaded);
+        filter.addAction(UURemoteData.Notifications.DataDownloadedBatch);
+
+        LocalBroadcastManager lbm = LocalBroadcastManager.getInstance(getContext());
+        BroadcastReceiver br = new BroadcastReceiver()
+        {
+            @Override
+            public void onReceive(Context context, Intent intent)
+            {
+                received.add(intent);
+                countdownLatch.countDown();
+            }
+        };
+
+        lbm.registerReceiver(br, filter);
+        dataCache.setNotificationCoalescingWindow(200);
+
+        try
+        {
+            for (String key : keys)
+            {
+                dataCache.notifyDataDownloaded(key);
+
+                // Repeats within the window are only sent once
+                dataCache.notifyDataDownloaded(key);
+            }
+
+            countdownLatch.await();
+            Thread.sleep(500);
+
+            Assert.assertEquals("Expect a single notification", 1, received.size());
+            Assert.assertEquals(UURemoteData.Notifications.DataDownloadedBatch, received.get(0).getAction());
+            Assert.assertEquals(keys, received.get(0).getStringArrayListExtra(UURemoteData.NotificationKeys.RemotePaths));
+            Assert.assertEquals("Expect new data to be listed as changed", keys, received.get(0).getStringArrayListExtra(UURemoteData.NotificationKeys.ChangedRemotePaths));
+        }
+        finally
+        {
+            dataCache.setNotificationCoalescingWindow(0);
+            lbm.unregisterReceiver(br);
+        }
+    }
 }
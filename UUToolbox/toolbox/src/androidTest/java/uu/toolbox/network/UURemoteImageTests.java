@@ -2,6 +2,7 @@ package uu.toolbox.network;
 
 import android.app.Application;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
@@ -11,9 +12,11 @@ import android.test.ApplicationTestCase;
 
 import junit.framework.Assert;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
 
+import uu.toolbox.core.UUObjectDelegate;
 import uu.toolbox.data.UUDataCache;
 import uu.toolbox.network.UURemoteData;
 import uu.toolbox.network.UURemoteImage;
@@ -154,4 +157,258 @@ public class UURemoteImageTests extends ApplicationTestCase<Application>
         byte[] data = UURemoteData.sharedInstance().getData(key);
         Assert.assertNotNull("Expect data after download to not be null", data);
     }*/
+
+    public void test_0003_fetchWithCoalescedDecodes() throws Exception
+    {
+        final String key = TEST_URL;
+        dataCache.clearCache();
+
+        final int callerCount = 10;
+        countdownLatch = new CountDownLatch(callerCount);
+        final ArrayList<Bitmap> results = new ArrayList<>();
+
+        for (int i = 0; i < callerCount; i++)
+        {
+            dataCache.getImage(key, 200, 200, bitmap ->
+            {
+                synchronized (results)
+                {
+                    results.add(bitmap);
+                }
+
+                countdownLatch.countDown();
+            });
+        }
+
+        countdownLatch.await();
+
+        Assert.assertEquals(callerCount, results.size());
+        for (Bitmap bitmap : results)
+        {
+            Assert.assertNotNull("Expect every caller to receive the image", bitmap);
+            Assert.assertSame("Expect a single decode for all callers", results.get(0), bitmap);
+        }
+    }
+
+    public void test_0004_cancelDecode() throws Exception
+    {
+        final String key = TEST_URL;
+        dataCache.clearCache();
+
+        final ArrayList<Bitmap> results = new ArrayList<>();
+        UUObjectDelegate<Bitmap> delegate = bitmap ->
+        {
+            synchronized (results)
+            {
+                results.add(bitmap);
+            }
+        };
+
+        // Hold downloads in the queue so the request is still waiting when it is cancelled
+        UURemoteData remoteData = UURemoteData.sharedInstance();
+        int maxDownloads = remoteData.getMaxDownloadRequests();
+        remoteData.setMaxDownloadRequests(0);
+
+        try
+        {
+            UUDataCache.sharedInstance().removeData(key);
+
+            dataCache.getImage(key, 300, 300, delegate);
+            Assert.assertTrue("Expect a waiting delegate to be cancelled", dataCache.cancelImage(key, 300, 300, delegate));
+            Assert.assertFalse("Expect a cancelled delegate not to be waiting", dataCache.cancelImage(key, 300, 300, delegate));
+            Assert.assertFalse("Expect the download to be withdrawn", remoteData.cancelDownload(key));
+        }
+        finally
+        {
+            remoteData.setMaxDownloadRequests(maxDownloads);
+        }
+
+        Thread.sleep(2000);
+
+        synchronized (results)
+        {
+            Assert.assertTrue("Expect a cancelled delegate not to be called", results.isEmpty());
+        }
+    }
+
+    public void test_0005_bitmapPool() throws Exception
+    {
+        UUBitmapPool pool = new UUBitmapPool();
+
+        Bitmap small = Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888);
+        Bitmap large = Bitmap.createBitmap(400, 400, Bitmap.Config.ARGB_8888);
+        Bitmap immutable = Bitmap.createBitmap(small, 0, 0, 50, 50);
+
+        pool.put(small);
+        pool.put(large);
+        pool.put(immutable);
+        Assert.assertEquals("Expect immutable bitmaps to be ignored", small.getAllocationByteCount() + large.getAllocationByteCount(), pool.size());
+
+        Assert.assertNull("Expect no bitmap in a different config", pool.get(90 * 90 * 2, Bitmap.Config.RGB_565));
+        Assert.assertSame("Expect the smallest bitmap that fits", small, pool.get(90 * 90 * 4, Bitmap.Config.ARGB_8888));
+        Assert.assertNull("Expect a much larger bitmap not to be handed out", pool.get(100 * 100 * 4, Bitmap.Config.ARGB_8888));
+
+        pool.trimToSize(0);
+        Assert.assertEquals(0, pool.size());
+        Assert.assertNull(pool.get(400 * 400 * 4, Bitmap.Config.ARGB_8888));
+
+        dataCache.setBitmapReuseEnabled(true);
+
+        try
+        {
+            final String key = TEST_URL;
+            dataCache.clearCache();
+
+            countdownLatch = new CountDownLatch(1);
+            final ArrayList<Bitmap> results = new ArrayList<>();
+            dataCache.getImage(key, 200, 200, bitmap ->
+            {
+                results.add(bitmap);
+                countdownLatch.countDown();
+            });
+
+            countdownLatch.await();
+
+            Assert.assertNotNull("Expect the image to decode", results.get(0));
+            Assert.assertTrue("Expect a reusable bitmap", results.get(0).isMutable());
+        }
+        finally
+        {
+            dataCache.setBitmapReuseEnabled(false);
+        }
+    }
+
+    public void test_0006_thumbnailTier() throws Exception
+    {
+        final String key = TEST_URL;
+        final UUDataCache cache = UUDataCache.sharedInstance();
+        dataCache.setThumbnailCacheEnabled(true);
+        dataCache.clearCache();
+
+        Assert.assertNotNull("Expect the first fetch to decode the original", fetchImage(key, 100, 100));
+
+        // Thumbnails are written in the background after the image is handed out
+        String thumbnailKey = waitForThumbnail(key);
+        Assert.assertNotNull("Expect a thumbnail to be stored", thumbnailKey);
+
+        // Served from the thumbnail once it is out of memory
+        dataCache.clearCache();
+        Assert.assertNotNull("Expect the thumbnail to decode", fetchImage(key, 100, 100));
+
+        // Replacing the original invalidates the thumbnail made from it
+        byte[] original = cache.getData(key);
+        Assert.assertNotNull(original);
+        Thread.sleep(10);
+        cache.setData(original, key);
+        dataCache.clearCache();
+
+        Assert.assertNotNull(fetchImage(key, 100, 100));
+        Assert.assertEquals("Expect the thumbnail to be remade from the new original", thumbnailKey, waitForThumbnail(key));
+    }
+
+    /**
+     * Waits for a thumbnail made from the current original to be stored
+     *
+     * @return its key, or null if none shows up
+     */
+    private String waitForThumbnail(final String key) throws Exception
+    {
+        final UUDataCache cache = UUDataCache.sharedInstance();
+
+        for (int i = 0; i < 50; i++)
+        {
+            for (String cached : cache.listKeys())
+            {
+                Object sourceTimestamp = cache.getMetaData(cached).get(UURemoteImage.MetaData.SourceTimestamp);
+                if (cached.startsWith(key + "#") && sourceTimestamp instanceof Number &&
+                    ((Number)sourceTimestamp).longValue() == cache.getDataTimestamp(key))
+                {
+                    return cached;
+                }
+            }
+
+            Thread.sleep(100);
+        }
+
+        return null;
+    }
+
+    public void test_0007_exactSizeDecode() throws Exception
+    {
+        final String key = TEST_URL;
+        dataCache.setThumbnailCacheEnabled(false);
+
+        try
+        {
+            dataCache.clearCache();
+
+            Bitmap fit = fetchImage(key, 200, 150, UURemoteImage.ScaleMode.Fit, null);
+            Assert.assertNotNull(fit);
+            Assert.assertTrue("Expect the image to fit inside the target", fit.getWidth() <= 201 && fit.getHeight() <= 151);
+            Assert.assertTrue("Expect one side to match the target", Math.abs(fit.getWidth() - 200) <= 1 || Math.abs(fit.getHeight() - 150) <= 1);
+
+            Bitmap fill = fetchImage(key, 200, 150, UURemoteImage.ScaleMode.Fill, null);
+            Assert.assertNotNull(fill);
+            Assert.assertTrue("Expect the image to cover the target", fill.getWidth() >= 199 && fill.getHeight() >= 149);
+            Assert.assertTrue("Expect one side to match the target", Math.abs(fill.getWidth() - 200) <= 1 || Math.abs(fill.getHeight() - 150) <= 1);
+
+            Bitmap crop = fetchImage(key, 200, 150, UURemoteImage.ScaleMode.Crop, Bitmap.Config.RGB_565);
+            Assert.assertNotNull(crop);
+            Assert.assertEquals(200, crop.getWidth());
+            Assert.assertEquals(150, crop.getHeight());
+            Assert.assertEquals(Bitmap.Config.RGB_565, crop.getConfig());
+            Assert.assertNotSame("Expect a separate cache entry per scale mode and format", fill, crop);
+        }
+        finally
+        {
+            dataCache.setThumbnailCacheEnabled(true);
+        }
+    }
+
+    public void test_0008_memoryTrim() throws Exception
+    {
+        final String key = TEST_URL;
+        UUMemoryBudget.init(getContext());
+        UUMemoryBudget budget = UUMemoryBudget.sharedInstance();
+
+        Assert.assertEquals(1.0f, UUMemoryBudget.keepFractionForLevel(0));
+        Assert.assertTrue(UUMemoryBudget.keepFractionForLevel(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) < UUMemoryBudget.keepFractionForLevel(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        Assert.assertEquals(0.0f, UUMemoryBudget.keepFractionForLevel(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+
+        dataCache.clearCache();
+        Assert.assertNotNull(fetchImage(key, 200, 200));
+        Assert.assertNotNull(UUDataCache.sharedInstance().getData(key));
+
+        UUMemoryBudget.Usage usage = budget.getUsage();
+        Assert.assertTrue("Expect the decoded image to be counted", usage.imageCacheSize > 0);
+        Assert.assertTrue(usage.imageCacheSize <= usage.imageCacheLimit);
+        Assert.assertEquals(dataCache.getMemoryCacheLimit(), usage.imageCacheLimit);
+
+        budget.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+
+        usage = budget.getUsage();
+        Assert.assertEquals(0, usage.imageCacheSize);
+        Assert.assertEquals(0, usage.bitmapPoolSize);
+        Assert.assertEquals(0, usage.dataCacheSize);
+        Assert.assertEquals("Expect the limit to be left alone", dataCache.getMemoryCacheLimit(), usage.imageCacheLimit);
+    }
+
+    private Bitmap fetchImage(final String key, final int width, final int height) throws Exception
+    {
+        return fetchImage(key, width, height, UURemoteImage.ScaleMode.Fill, null);
+    }
+
+    private Bitmap fetchImage(final String key, final int width, final int height, final UURemoteImage.ScaleMode scaleMode, final Bitmap.Config config) throws Exception
+    {
+        countdownLatch = new CountDownLatch(1);
+        final ArrayList<Bitmap> results = new ArrayList<>();
+        dataCache.getImage(key, width, height, scaleMode, config, bitmap ->
+        {
+            results.add(bitmap);
+            countdownLatch.countDown();
+        });
+
+        countdownLatch.await();
+        return results.get(0);
+    }
 }
@@ -1,13 +1,22 @@
 package uu.toolbox.core;
 
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import uu.toolbox.logging.UULog;
 
@@ -16,6 +25,14 @@ import uu.toolbox.logging.UULog;
  */
 public class UUCompression
 {
+    // Maximum number of idle Deflater and Inflater instances kept for reuse
+    private static final int MAX_POOLED_CODECS = 4;
+
+    private static final int CODEC_BUFFER_SIZE = 8192;
+
+    private static final ArrayDeque<Deflater> deflaterPool = new ArrayDeque<>();
+    private static final ArrayDeque<Inflater> inflaterPool = new ArrayDeque<>();
+
     @Nullable
     public static byte[] gzip(@Nullable final byte[] data)
     {
@@ -98,4 +115,244 @@ public class UUCompression
 
         return decompressed;
     }
+
+    /**
+     * Compresses data in the zlib format using a pooled Deflater.  Unlike gzip, this does
+     * not allocate a new native compressor for every call.
+     *
+     * @param data the bytes to compress
+     * @return the compressed bytes, or null on failure
+     */
+    @Nullable
+    public static byte[] deflate(@Nullable final byte[] data)
+    {
+        if (data == null)
+        {
+            return null;
+        }
+
+        Deflater deflater = acquireDeflater();
+        byte[] compressed = null;
+
+        try
+        {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.max(data.length / 2, 64));
+            byte[] buffer = new byte[CODEC_BUFFER_SIZE];
+
+            while (!deflater.finished())
+            {
+                int count = deflater.deflate(buffer);
+                bos.write(buffer, 0, count);
+            }
+
+            compressed = bos.toByteArray();
+        }
+        catch (Exception ex)
+        {
+            UULog.debug(UUCompression.class, "deflate", ex);
+        }
+        finally
+        {
+            releaseDeflater(deflater);
+        }
+
+        return compressed;
+    }
+
+    /**
+     * Decompresses data produced by deflate using a pooled Inflater.
+     *
+     * @param data the compressed bytes
+     * @return the original bytes, or null on failure
+     */
+    @Nullable
+    public static byte[] inflate(@Nullable final byte[] data)
+    {
+        if (data == null)
+        {
+            return null;
+        }
+
+        Inflater inflater = acquireInflater();
+        byte[] decompressed = null;
+
+        try
+        {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+            byte[] buffer = new byte[CODEC_BUFFER_SIZE];
+
+            while (!inflater.finished())
+            {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    throw new IOException("Truncated or invalid deflate data");
+                }
+
+                bos.write(buffer, 0, count);
+            }
+
+            decompressed = bos.toByteArray();
+        }
+        catch (Exception ex)
+        {
+            UULog.debug(UUCompression.class, "inflate", ex);
+        }
+        finally
+        {
+            releaseInflater(inflater);
+        }
+
+        return decompressed;
+    }
+
+    /**
+     * Wraps a stream of data produced by deflate.  The pooled Inflater is returned when
+     * the stream is closed, so callers must always close it.
+     *
+     * @param is a stream of compressed bytes
+     * @return a stream of the original bytes
+     */
+    @NonNull
+    public static InputStream inflateStream(@NonNull final InputStream is)
+    {
+        return new PooledInflaterInputStream(is, acquireInflater());
+    }
+
+    /**
+     * Wraps a stream so that everything written to it is deflated, in the same format as
+     * deflate.  The pooled Deflater is returned when the stream is closed, so callers must
+     * always close it.
+     *
+     * @param os the stream that receives compressed bytes
+     * @return a stream that takes the original bytes
+     */
+    @NonNull
+    public static OutputStream deflateStream(@NonNull final OutputStream os)
+    {
+        return new PooledDeflaterOutputStream(os, acquireDeflater());
+    }
+
+    @NonNull
+    private static Deflater acquireDeflater()
+    {
+        synchronized (deflaterPool)
+        {
+            Deflater deflater = deflaterPool.poll();
+            if (deflater != null)
+            {
+                return deflater;
+            }
+        }
+
+        return new Deflater(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    private static void releaseDeflater(@NonNull final Deflater deflater)
+    {
+        deflater.reset();
+
+        synchronized (deflaterPool)
+        {
+            if (deflaterPool.size() < MAX_POOLED_CODECS)
+            {
+                deflaterPool.push(deflater);
+                return;
+            }
+        }
+
+        deflater.end();
+    }
+
+    @NonNull
+    private static Inflater acquireInflater()
+    {
+        synchronized (inflaterPool)
+        {
+            Inflater inflater = inflaterPool.poll();
+            if (inflater != null)
+            {
+                return inflater;
+            }
+        }
+
+        return new Inflater();
+    }
+
+    private static void releaseInflater(@NonNull final Inflater inflater)
+    {
+        inflater.reset();
+
+        synchronized (inflaterPool)
+        {
+            if (inflaterPool.size() < MAX_POOLED_CODECS)
+            {
+                inflaterPool.push(inflater);
+                return;
+            }
+        }
+
+        inflater.end();
+    }
+
+    private static class PooledDeflaterOutputStream extends DeflaterOutputStream
+    {
+        private boolean released = false;
+
+        PooledDeflaterOutputStream(@NonNull final OutputStream os, @NonNull final Deflater deflater)
+        {
+            super(os, deflater, CODEC_BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                // DeflaterOutputStream only ends deflaters it created itself
+                if (!released)
+                {
+                    released = true;
+                    releaseDeflater(def);
+                }
+            }
+        }
+    }
+
+    private static class PooledInflaterInputStream extends InflaterInputStream
+    {
+        private boolean released = false;
+
+        PooledInflaterInputStream(@NonNull final InputStream is, @NonNull final Inflater inflater)
+        {
+            super(is, inflater, CODEC_BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                super.close();
+            }
+            finally
+            {
+                // InflaterInputStream only ends inflaters it created itself
+                if (!released)
+                {
+                    released = true;
+                    releaseInflater(inf);
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,119 @@
+package uu.toolbox.core;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import uu.toolbox.logging.UULog;
+
+/**
+ * A small, bounded pool of worker threads where work submitted for the same key always runs
+ * in submission order, one task at a time.  Work for different keys runs in parallel.
+ */
+public class UUKeyedExecutor
+{
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor executor;
+    private final HashMap<String, ArrayDeque<Runnable>> pendingTasks = new HashMap<>();
+
+    public UUKeyedExecutor(@NonNull final String name, final int threadCount)
+    {
+        executor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), new NamedThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queues a task for a key.  The task starts once every task previously queued for the
+     * same key has finished.
+     *
+     * @param key the ordering key
+     * @param task the work to run
+     */
+    public void execute(@NonNull final String key, @NonNull final Runnable task)
+    {
+        synchronized (pendingTasks)
+        {
+            ArrayDeque<Runnable> queue = pendingTasks.get(key);
+            if (queue != null)
+            {
+                // A task for this key is already running, it will pick this one up when done
+                queue.add(task);
+                return;
+            }
+
+            pendingTasks.put(key, new ArrayDeque<>());
+        }
+
+        executor.execute(() -> drain(key, task));
+    }
+
+    private void drain(@NonNull final String key, @NonNull final Runnable first)
+    {
+        Runnable task = first;
+
+        while (task != null)
+        {
+            boolean finished = false;
+
+            try
+            {
+                task.run();
+                finished = true;
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "drain", ex);
+                finished = true;
+            }
+            finally
+            {
+                // Runs even when a task throws an Error, otherwise the key would stay marked
+                // busy and nothing queued for it afterwards would ever run
+                synchronized (pendingTasks)
+                {
+                    ArrayDeque<Runnable> queue = pendingTasks.get(key);
+                    task = (queue != null ? queue.poll() : null);
+
+                    if (task == null)
+                    {
+                        pendingTasks.remove(key);
+                    }
+                }
+
+                if (!finished && task != null)
+                {
+                    // The Error ends this thread, so the rest of the queue moves to another
+                    final Runnable next = task;
+                    executor.execute(() -> drain(key, next));
+                }
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory
+    {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(@NonNull final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull final Runnable r)
+        {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setPriority(Thread.NORM_PRIORITY - 1);
+            return t;
+        }
+    }
+}
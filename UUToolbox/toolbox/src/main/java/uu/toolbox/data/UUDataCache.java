@@ -1,20 +1,51 @@
 package uu.toolbox.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.LruCache;
+import android.util.Pair;
 
+import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Locale;
-
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import uu.toolbox.core.UUCloseable;
+import uu.toolbox.core.UUCompression;
 import uu.toolbox.core.UUFile;
 import uu.toolbox.core.UUJson;
+import uu.toolbox.core.UUKeyedExecutor;
+import uu.toolbox.core.UUNonNullObjectDelegate;
+import uu.toolbox.core.UUObjectDelegate;
 import uu.toolbox.core.UUString;
+import uu.toolbox.core.UUWorkerThread;
 import uu.toolbox.logging.UULog;
 
 public class UUDataCache implements UUDataCacheProtocol
@@ -24,10 +55,73 @@ public class UUDataCache implements UUDataCacheProtocol
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
     public static final long DEFAULT_CONTENT_EXPIRATION_SECONDS = (long)(60L * 60L * 24L * 30L * 1000L); // 30 days
+    public static final int DEFAULT_MEMORY_CACHE_LIMIT = 4 * 1024 * 1024; // 4 MB
+    public static final long DEFAULT_DISK_CACHE_LIMIT = 100L * 1024L * 1024L; // 100 MB
+
+    // When the disk budget is exceeded, entries are evicted until usage drops to this fraction
+    // of the limit, so that a cache sitting at its limit does not trim on every write.
+    private static final double DISK_CACHE_TRIM_RATIO = 0.9;
+    private static final int DISK_CACHE_TRIM_BATCH_SIZE = 50;
+    private static final long ACCESS_TIME_FLUSH_DELAY = 2000;
+    public static final long DEFAULT_PURGE_INTERVAL = 60L * 60L * 1000L; // 1 hour
+    private static final long INITIAL_PURGE_DELAY = 30L * 1000L;
+    private static final String TEMP_FOLDER_NAME = "tmp";
+    private static final int STREAM_BUFFER_SIZE = 10240; // 10k
+
+    // Objects larger than this fraction of the memory tier are served from disk only
+    private static final int MEMORY_CACHE_MAX_ENTRY_DIVISOR = 8;
+
+    // Number of lock stripes that keys are spread across
+    private static final int KEY_LOCK_STRIPES = 64;
+
+    // Entries smaller than this are always stored as is
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 1024; // 1k
+
+    // Compressed data is only kept when it is at most this fraction of the original size
+    private static final double COMPRESSION_MIN_SAVINGS_RATIO = 0.9;
+
+    static final String ENCODING_DEFLATE = "deflate";
+
+    // Number of threads that run the asynchronous methods
+    private static final int IO_THREAD_COUNT = 3;
+
+    // Keys read within this long after launch are preloaded on the next launch
+    public static final long DEFAULT_WARM_UP_WINDOW = 10L * 1000L; // 10 seconds
+    private static final int WARM_UP_MAX_KEYS = 100;
+    private static final int WARM_UP_LAUNCH_HISTORY = 3;
+    private static final String WARM_UP_MANIFEST_PATH = "warmup/manifest.json";
+
+    // Warm up stops filling the memory tier past this fraction of its limit
+    private static final double WARM_UP_MEMORY_RATIO = 0.5;
+
+    private static final int META_DATA_CACHE_ENTRIES = 256;
+
+    // Sub folder holding content addressed payloads that may be shared by several keys
+    private static final String BLOB_FOLDER_NAME = "cas";
+
+    // Sub folder holding interrupted writes that can be resumed.  Unlike the temp folder it
+    // survives a restart, but anything not resumed within the max age is thrown away.
+    private static final String PARTIAL_FOLDER_NAME = "partial";
+    private static final String PARTIAL_VALIDATOR_EXTENSION = ".validator";
+    private static final long PARTIAL_DATA_MAX_AGE = 7L * 24L * 60L * 60L * 1000L; // 7 days
+
+    // Separates a derived key from the key it was derived from.  The range end is the same
+    // with the last character bumped, so a range query finds every derived key of a source.
+    private static final String DERIVED_KEY_SEPARATOR = "#uu_";
+    private static final String DERIVED_KEY_RANGE_END = "#uu`";
 
     public static class MetaData
     {
         public static final String Timestamp = "Timestamp";
+        public static final String MimeType = "MimeType";
+
+        // Long, absolute time in millis after which the entry is expired.  Overrides the
+        // global expiration interval for a single entry.
+        public static final String ExpiresAt = "ExpiresAt";
+
+        // String, an opaque token the owner can use to check an expired entry is still
+        // current.  Expired entries with a validator are kept as stale instead of removed.
+        public static final String Validator = "Validator";
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -38,7 +132,7 @@ public class UUDataCache implements UUDataCacheProtocol
 
     public static void init(final Context context)
     {
-        theSharedInstance = new UUDataCache(context, defaultCacheFolder(context), DEFAULT_CONTENT_EXPIRATION_SECONDS);
+        theSharedInstance = new UUDataCache(context, defaultCacheFolder(context), DEFAULT_CONTENT_EXPIRATION_SECONDS, DEFAULT_MEMORY_CACHE_LIMIT);
     }
 
     public static synchronized UUDataCache sharedInstance()
@@ -53,6 +147,37 @@ public class UUDataCache implements UUDataCacheProtocol
     private long contentExpirationLength = DEFAULT_CONTENT_EXPIRATION_SECONDS;
     private File cacheFolder = null;
     private UUDataCacheDb metaDataDb;
+    private MemoryCache memoryCache;
+    private long diskCacheLimit = DEFAULT_DISK_CACHE_LIMIT;
+    private final AtomicLong diskCacheSize = new AtomicLong(0);
+    private final AtomicBoolean diskTrimPending = new AtomicBoolean(false);
+    private final HashMap<String, Long> pendingAccessTimes = new HashMap<>();
+    private final HashMap<String, IndexEntry> metaDataIndex = new HashMap<>();
+    private volatile boolean metaDataIndexLoaded = false;
+
+    // Held while the index is read from the database, so that readers waiting on the
+    // metaDataIndex monitor are never stuck behind the query.  Package private for tests.
+    final Object metaDataIndexLoadLock = new Object();
+    private long purgeInterval = DEFAULT_PURGE_INTERVAL;
+    private final Runnable purgeRunnable = this::handleScheduledPurge;
+    private final ReentrantReadWriteLock[] keyLocks = new ReentrantReadWriteLock[KEY_LOCK_STRIPES];
+    private boolean compressionEnabled = true;
+    private int compressionThreshold = DEFAULT_COMPRESSION_THRESHOLD;
+    private boolean deduplicationEnabled = false;
+
+    // Guards creating and deleting shared payload files against their reference counts
+    private final Object blobLock = new Object();
+    private final UUWorkerThread workerThread = new UUWorkerThread("UUDataCache");
+    private final UUKeyedExecutor ioExecutor = new UUKeyedExecutor("UUDataCacheIO", IO_THREAD_COUNT);
+    private final LruCache<String, HashMap<String, Object>> metaDataCache = new LruCache<>(META_DATA_CACHE_ENTRIES);
+    private final long launchTime = System.currentTimeMillis();
+
+    // Temp files of this instance go in a sub folder of their own, so clearing out what
+    // earlier launches left behind never touches a write that is in flight
+    private final String tempFolderName = UUID.randomUUID().toString();
+    private final LinkedHashSet<String> warmUpKeys = new LinkedHashSet<>();
+    private long warmUpWindow = DEFAULT_WARM_UP_WINDOW;
+    private final Runnable warmUpManifestRunnable = this::saveWarmUpManifest;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Instance Variables
@@ -62,319 +187,2497 @@ public class UUDataCache implements UUDataCacheProtocol
                        @NonNull final File cacheLocation,
                        final long contentExpiration)
     {
-        cacheFolder = cacheLocation;
-        contentExpirationLength = contentExpiration;
-        UUFile.createFoldersIfNeeded(cacheFolder);
-        metaDataDb = new UUDataCacheDb(context);
+        this(context, cacheLocation, contentExpiration, DEFAULT_MEMORY_CACHE_LIMIT);
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // UUDataCacheProtocol interface
-    ////////////////////////////////////////////////////////////////////////////////////////////////
+    public UUDataCache(@NonNull final Context context,
+                       @NonNull final File cacheLocation,
+                       final long contentExpiration,
+                       final int memoryCacheLimit)
+    {
+        this(context, cacheLocation, contentExpiration, memoryCacheLimit, new UUDataCacheDbSchema());
+    }
 
-    @Nullable
-    @Override
-    public byte[] getData(@NonNull String key)
+    /**
+     * Package private for tests, which keep their meta data in a database of their own
+     */
+    UUDataCache(@NonNull final Context context,
+                @NonNull final File cacheLocation,
+                final long contentExpiration,
+                final int memoryCacheLimit,
+                @NonNull final UUDatabaseDefinition databaseDefinition)
     {
-        removeIfExpired(key);
+        cacheFolder = cacheLocation;
+        contentExpirationLength = contentExpiration;
 
-        byte[] cached = loadFromCache(key);
-        if (cached != null)
+        for (int i = 0; i < keyLocks.length; i++)
         {
-            return cached;
+            keyLocks[i] = new ReentrantReadWriteLock();
         }
 
-        return loadFromDisk(key);
+        UUFile.createFoldersIfNeeded(cacheFolder);
+        metaDataDb = new UUDataCacheDb(context, databaseDefinition);
+        memoryCache = new MemoryCache(memoryCacheLimit);
+
+        workerThread.post(() ->
+        {
+            // The index goes first, until it is loaded existence checks answer false
+            loadMetaDataIndexIfNeeded();
+            updateIndexSizes(metaDataDb.backfillSizes(cacheFolder));
+            migrateLegacyFileLayout();
+            removeAbandonedTempFiles();
+            removeAbandonedPartialData();
+            preloadWarmUpEntries();
+            trimDiskCache();
+        });
+
+        workerThread.postDelayed(purgeRunnable, INITIAL_PURGE_DELAY);
+        workerThread.postDelayed(warmUpManifestRunnable, warmUpWindow);
     }
 
-    @Override
-    public void setData(@NonNull byte[] data, @NonNull String key)
+    /**
+     * Gets the maximum number of bytes held in the in-memory tier
+     *
+     * @return a byte count
+     */
+    public int getMemoryCacheLimit()
     {
-        saveToDisk(data, key);
-        saveToCache(data, key);
-
-        HashMap<String, Object> md = getMetaData(key);
-        md.put(MetaData.Timestamp, System.currentTimeMillis());
-        setMetaData(md, key);
+        return memoryCache.maxSize();
     }
 
-    @NonNull
-    @Override
-    public HashMap<String, Object> getMetaData(@NonNull String key)
+    /**
+     * Sets the maximum number of bytes held in the in-memory tier. Shrinking the limit
+     * immediately evicts the least recently used entries.
+     *
+     * @param limit a byte count
+     */
+    public void setMemoryCacheLimit(final int limit)
     {
-        return metaDataDb.getMetaData(key);
+        memoryCache.resize(limit);
     }
 
-    @Override
-    public void setMetaData(@NonNull HashMap<String, Object> metaData, @NonNull String key)
+    /**
+     * Gets the number of bytes currently held in the in-memory tier
+     *
+     * @return a byte count
+     */
+    public int getMemoryCacheSize()
     {
-        metaDataDb.setMetaData(key, metaData);
+        return memoryCache.size();
     }
 
-    @Override
-    public boolean doesDataExist(@NonNull String key)
+    /**
+     * Evicts the least recently used entries from the in-memory tiers until they hold no more
+     * than a fraction of their limits.  The limits themselves are left alone, so the tiers
+     * fill up again as data is read.
+     *
+     * @param keepFraction fraction of each limit to keep, from 0 to 1
+     */
+    public void trimMemory(final float keepFraction)
     {
-        try
-        {
-            if (UUString.isNotEmpty(key))
-            {
-                File file = getDiskFileName(key);
-                return file.exists();
-            }
-        }
-        catch (Exception ex)
-        {
-            UULog.error(getClass(), "doesDataExist", ex);
-        }
-
-        return false;
+        float keep = Math.max(0, Math.min(1, keepFraction));
+        memoryCache.trimToSize((int)(memoryCache.maxSize() * keep));
+        metaDataCache.trimToSize((int)(metaDataCache.maxSize() * keep));
     }
 
-    @Override
-    public boolean isDataExpired(@NonNull String key)
+    /**
+     * Gets the maximum number of bytes kept on disk
+     *
+     * @return a byte count, zero or less means unlimited
+     */
+    public long getDiskCacheLimit()
     {
-        HashMap<String, Object> md = getMetaData(key);
-        Object timestamp = md.get(MetaData.Timestamp);
-        if (timestamp != null && timestamp instanceof Long)
-        {
-            long actualTimestamp = (Long)timestamp;
-            long elapsed = System.currentTimeMillis() - actualTimestamp;
-            return (elapsed > contentExpirationLength);
-        }
-
-        return false;
+        return diskCacheLimit;
     }
 
-    @Override
-    public void removeData(@NonNull String key)
+    /**
+     * Sets the maximum number of bytes kept on disk. When the limit is exceeded, the least
+     * recently accessed entries are evicted on a background thread.
+     *
+     * @param limit a byte count, zero or less means unlimited
+     */
+    public void setDiskCacheLimit(final long limit)
     {
-        removeAllMetaData(key);
-        removeFileFromCache(key);
-        removeFileFromDisk(key);
+        diskCacheLimit = limit;
+        scheduleDiskTrimIfNeeded();
     }
 
-    @Override
-    public void clearCache()
+    /**
+     * Gets the interval at which expired data is purged in the background
+     *
+     * @return interval in milliseconds
+     */
+    public long getPurgeInterval()
     {
-        clearDiskCache();
-        clearMemoryCache();
-
-        metaDataDb.clearAllMetaData();
+        return purgeInterval;
     }
 
-    @Override
-    public void purgeExpiredData()
+    /**
+     * Sets the interval at which expired data is purged in the background
+     *
+     * @param interval a value in milliseconds, zero or less disables the scheduled purge
+     */
+    public void setPurgeInterval(final long interval)
     {
-        ArrayList<String> keys = listKeys();
+        purgeInterval = interval;
 
-        for (String key : keys)
+        workerThread.removeRunnable(purgeRunnable);
+        if (interval > 0)
         {
-            removeIfExpired(key);
+            workerThread.postDelayed(purgeRunnable, interval);
         }
     }
 
-    @Override
-    public long getDataExpirationInterval()
-    {
-        return contentExpirationLength;
-    }
-
-    @Override
-    public void setDataExpirationInterval(long interval)
+    /**
+     * Gets how long after launch reads are recorded for warm up
+     *
+     * @return interval in milliseconds
+     */
+    public long getWarmUpWindow()
     {
-        contentExpirationLength = interval;
+        return warmUpWindow;
     }
 
-    @NonNull
-    @Override
-    public ArrayList<String> listKeys()
+    /**
+     * Sets how long after launch reads are recorded for warm up.  Keys read in that window
+     * are preloaded into memory on the next few launches.
+     *
+     * @param window a value in milliseconds, zero or less disables warm up
+     */
+    public void setWarmUpWindow(final long window)
     {
-        ArrayList<String> results = new ArrayList<>();
+        warmUpWindow = window;
 
-        try
+        workerThread.removeRunnable(warmUpManifestRunnable);
+        if (window > 0)
         {
-            if (cacheFolder != null)
-            {
-                File[] list = cacheFolder.listFiles();
-                for (File f : list)
-                {
-                    results.add(f.getName());
-                }
-            }
+            long delay = Math.max(0, (launchTime + window) - System.currentTimeMillis());
+            workerThread.postDelayed(warmUpManifestRunnable, delay);
         }
-        catch (Exception ex)
+        else
         {
-            UULog.error(getClass(), "listKeys", ex);
-            results = new ArrayList<>();
+            workerThread.post(() -> UUFile.deleteFile(getWarmUpManifestFile()));
         }
+    }
 
-        return results;
+    /**
+     * Gets the number of bytes currently tracked on disk
+     *
+     * @return a byte count
+     */
+    public long getDiskCacheSize()
+    {
+        return diskCacheSize.get();
     }
 
-    ////////////////////////////////////////////////////////////////////////////////////////////////
-    // Private Implementation
-    ////////////////////////////////////////////////////////////////////////////////////////////////
+    /**
+     * Gets whether setData compresses entries on disk
+     *
+     * @return true if compression is enabled
+     */
+    public boolean isCompressionEnabled()
+    {
+        return compressionEnabled;
+    }
 
-    private static @NonNull File defaultCacheFolder(@NonNull final Context context)
+    /**
+     * Sets whether setData compresses entries on disk.  Entries already written keep the
+     * encoding they were stored with and are still read back correctly.
+     *
+     * @param enabled true to enable compression
+     */
+    public void setCompressionEnabled(final boolean enabled)
     {
-        return new File(context.getCacheDir(), "UUDataCache");
+        compressionEnabled = enabled;
     }
 
-    @NonNull
-    private String sanitizeKey(@NonNull final String key)
+    /**
+     * Gets the size below which entries are never compressed
+     *
+     * @return a byte count
+     */
+    public int getCompressionThreshold()
     {
-        return key.replaceAll("[^A-Za-z0-9]", "-");
+        return compressionThreshold;
     }
 
-    @NonNull
-    public File getDiskFileName(@NonNull final String key)
+    /**
+     * Sets the size below which entries are never compressed.  Entries at or above the
+     * threshold are compressed when their mime type is text based, or when no mime type
+     * is known and compression actually makes them smaller.
+     *
+     * @param threshold a byte count
+     */
+    public void setCompressionThreshold(final int threshold)
     {
-        return new File(cacheFolder, sanitizeKey(key));
+        compressionThreshold = threshold;
     }
 
-    private void removeIfExpired(@NonNull final String key)
+    /**
+     * Gets whether setData stores payloads by content digest
+     *
+     * @return true if deduplication is enabled
+     */
+    public boolean isDeduplicationEnabled()
     {
-        if (isDataExpired(key))
-        {
-            removeData(key);
-        }
+        return deduplicationEnabled;
+    }
+
+    /**
+     * Sets whether setData stores payloads by content digest.  When enabled, keys with
+     * byte identical data share a single file, which is kept until the last key that
+     * references it is removed or evicted.  Entries already written are not rewritten.
+     *
+     * @param enabled true to enable deduplication
+     */
+    public void setDeduplicationEnabled(final boolean enabled)
+    {
+        deduplicationEnabled = enabled;
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // UUDataCacheProtocol interface
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
     @Nullable
-    private byte[] loadFromDisk(@NonNull final String key)
+    @Override
+    public byte[] getData(@NonNull String key)
     {
-        byte[] data = null;
+        recordWarmUpKey(key);
 
-        try
+        if (removeIfExpired(key))
         {
-            File pathUrl = getDiskFileName(key);
-            data = UUFile.readFile(pathUrl);
+            return null;
         }
-        catch (Exception ex)
+
+        return readData(key);
+    }
+
+    /**
+     * Fetches data even if it is stale, for callers that would rather show old data while
+     * they revalidate it than show nothing.  Expired data without a validator is still
+     * removed and not returned.
+     *
+     * @param key lookup key
+     * @return the data, or null if there is none
+     */
+    @Nullable
+    public byte[] getStaleData(@NonNull final String key)
+    {
+        IndexEntry entry = getIndexEntry(key);
+        if (entry == null || !entry.isStale(System.currentTimeMillis(), contentExpirationLength))
         {
-            UULog.error(getClass(), "loadFromDisk", ex);
+            return getData(key);
         }
 
-        return data;
+        recordWarmUpKey(key);
+        return readData(key);
     }
 
     @Nullable
-    private byte[] loadFromCache(@NonNull final String key)
+    private byte[] readData(@NonNull final String key)
     {
-        //return dataCache.object(forKey: key as NSString) as Data?
+        byte[] cached = loadFromCache(key);
+        if (cached != null)
+        {
+            recordAccess(key);
+            return cached;
+        }
 
-        // TODO: Implement in memory cache
-        return null;
+        byte[] data;
+        Lock lock = readLock(key);
+        lock.lock();
+
+        try
+        {
+            data = loadFromDisk(key);
+            if (data != null)
+            {
+                recordAccess(key);
+                saveToCache(data, key);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (data == null)
+        {
+            removeIfMissing(key);
+        }
+
+        return data;
     }
 
-    private void removeFileFromDisk(@NonNull String key)
+    @Override
+    public void setData(@NonNull byte[] data, @NonNull String key)
     {
         try
         {
-            File pathUrl = getDiskFileName(key);
-            UUFile.deleteFile(pathUrl);
+            // Compression happens before any lock is taken so readers are never held up by it
+            byte[] compressed = compressIfNeeded(data, key);
+            byte[] stored = (compressed != null ? compressed : data);
+            String encoding = (compressed != null ? ENCODING_DEFLATE : null);
+
+            if (deduplicationEnabled)
+            {
+                setSharedData(data, stored, encoding, key);
+                return;
+            }
+
+            File tempFile = createTempFile();
+            if (UUFile.writeFile(tempFile, stored))
+            {
+                commitTempFile(tempFile, key, data, encoding);
+            }
+            else
+            {
+                UUFile.deleteFile(tempFile);
+            }
         }
         catch (Exception ex)
         {
-            UULog.error(getClass(), "removeFileFromDisk", ex);
+            UULog.error(getClass(), "setData", ex);
         }
     }
 
-    private void removeFileFromCache(@NonNull String key)
+    @Nullable
+    @Override
+    public InputStream openInputStream(@NonNull final String key)
     {
+        if (removeIfExpired(key))
+        {
+            return null;
+        }
+
+        Lock lock = readLock(key);
+        lock.lock();
+
         try
         {
-            // TODO: Implement remove from cache
+            // Writers replace files by rename, so an open stream keeps reading the object
+            // as it was when opened.
+            File file = getDiskFileName(key);
+            if (file.exists())
+            {
+                InputStream is = new BufferedInputStream(new FileInputStream(file), STREAM_BUFFER_SIZE);
+                if (isCompressed(key))
+                {
+                    is = UUCompression.inflateStream(is);
+                }
+
+                recordAccess(key);
+                return is;
+            }
         }
         catch (Exception ex)
         {
-            UULog.error(getClass(), "removeFileFromCache", ex);
+            UULog.error(getClass(), "openInputStream", ex);
         }
+        finally
+        {
+            lock.unlock();
+        }
+
+        removeIfMissing(key);
+        return null;
     }
 
-    private void removeAllMetaData(@NonNull String key)
+    @Nullable
+    @Override
+    public MappedByteBuffer mapData(@NonNull final String key)
     {
+        if (removeIfExpired(key))
+        {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        Lock lock = readLock(key);
+        lock.lock();
+
         try
         {
-            //public static void destroy(final Context context, final Class<? extends UUDatabase> dbClass)
-            // TODO: Implement remove all meta data
+            File file = getDiskFileName(key);
+            if (isCompressed(key))
+            {
+                UULog.debug(getClass(), "mapData", "Data for " + key + " is stored compressed and cannot be mapped");
+            }
+            else if (file.exists())
+            {
+                raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel();
+
+                // The mapping stays valid after the channel is closed
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                recordAccess(key);
+                return buffer;
+            }
         }
         catch (Exception ex)
         {
-            UULog.error(getClass(), "removeAllMetaData", ex);
+            UULog.error(getClass(), "mapData", ex);
         }
+        finally
+        {
+            UUCloseable.safeClose(raf);
+            lock.unlock();
+        }
+
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public OutputStream openOutputStream(@NonNull final String key)
+    {
+        return openOutputStream(key, null);
     }
 
-    private void saveToDisk(@NonNull byte[] data, @NonNull String key)
+    /**
+     * Opens a stream to write data of a known type into the cache.  Compressible types are
+     * deflated as they are written, since there is no complete buffer to try them on first.
+     *
+     * @param key lookup key
+     * @param mimeType type of the data, or null if unknown, in which case it is stored as is
+     * @return an output stream that the caller must close to commit the data, or null if
+     * the stream could not be opened.
+     */
+    @Nullable
+    public CacheOutputStream openOutputStream(@NonNull final String key, @Nullable final String mimeType)
     {
         try
         {
-            File pathUrl = getDiskFileName(key);
-            UUFile.writeFile(pathUrl, data);
+            boolean compress = (compressionEnabled && mimeType != null && isCompressibleMimeType(mimeType));
+            File tempFile = createTempFile();
+            return new CacheOutputStream(key, tempFile, (compress ? ENCODING_DEFLATE : null));
         }
         catch (Exception ex)
         {
-            UULog.error(getClass(), "saveToDisk", ex);
+            UULog.error(getClass(), "openOutputStream", ex);
         }
+
+        return null;
     }
 
-    private void saveToCache(@NonNull byte[] data, @NonNull String key)
+    @NonNull
+    @Override
+    public HashMap<String, Object> getMetaData(@NonNull String key)
     {
-        //dataCache.setObject(data as NSData, forKey: key as NSString)
+        // Callers are free to modify what they get back, so hand out copies
+        HashMap<String, Object> cached = metaDataCache.get(key);
+        if (cached != null)
+        {
+            return new HashMap<>(cached);
+        }
 
-        // TODO: Implement memory cache
-    }
+        Lock lock = readLock(key);
+        lock.lock();
 
-    private void clearDiskCache()
-    {
         try
         {
-            UUFile.deleteFile(cacheFolder);
-            UUFile.createFoldersIfNeeded(cacheFolder);
+            HashMap<String, Object> md = metaDataDb.getMetaData(key);
+            metaDataCache.put(key, new HashMap<>(md));
+            return md;
         }
-        catch (Exception ex)
+        finally
         {
-            UULog.error(getClass(), "clearDiskCache", ex);
+            lock.unlock();
         }
     }
 
-    private void clearMemoryCache()
+    @Override
+    public void setMetaData(@NonNull HashMap<String, Object> metaData, @NonNull String key)
     {
-        /*try
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
         {
-            UUFile.deleteFile(cacheFolder);
-            UUFile.createFoldersIfNeeded(cacheFolder);
+            UUDataCacheMetaData row = metaDataDb.setMetaData(key, metaData);
+            updateIndex(row);
         }
-        catch (Exception ex)
+        finally
         {
-            UULog.error(getClass(), "clearDiskCache", ex);
-        }*/
+            lock.unlock();
+        }
     }
 
+    /**
+     * Gets the mime type recorded for an entry. This is served from the in-memory index
+     * and does not touch the database.  Returns null until the index has loaded.
+     *
+     * @param key lookup key
+     * @return a mime type or null if none is recorded
+     */
+    @Nullable
+    public String getMimeType(@NonNull final String key)
+    {
+        IndexEntry entry = peekIndexEntry(key);
+        return (entry != null ? entry.mimeType : null);
+    }
 
-    @UUSqlTable(tableName = "uu_data_cache_meta_data")
-    public static class UUDataCacheMetaData implements UUDataModel
+    /**
+     * Gets the time an entry's data was last written.  Anything derived from the data can
+     * record this to find out later whether the data has been replaced since.  This is served
+     * from the in-memory index and does not touch the database.  Returns 0 until the index
+     * has loaded.
+     *
+     * @param key lookup key
+     * @return time in millis, or 0 if the key holds no data
+     */
+    public long getDataTimestamp(@NonNull final String key)
     {
-        @UUSqlColumn(name = "name", type = UUSqlColumn.Type.TEXT, primaryKey = true)
-        private String name;
+        IndexEntry entry = peekIndexEntry(key);
+        return (entry != null && entry.hasData() ? entry.timestamp : 0);
+    }
 
-        @UUSqlColumn(name = "timestamp", type = UUSqlColumn.Type.REAL)
-        private long timestamp;
+    /**
+     * Gets whether the in-memory index has loaded.  Until it has, doesDataExist and the other
+     * index queries answer as if the cache were empty, so a false answer from them means
+     * unknown rather than missing.  Reading the data itself waits for the index.
+     *
+     * @return true once the index has loaded
+     */
+    public boolean isIndexLoaded()
+    {
+        return metaDataIndexLoaded;
+    }
 
-        @UUSqlColumn(name = "meta_data", type = UUSqlColumn.Type.TEXT)
-        private String metaData;
+    /**
+     * Builds the key for data derived from another entry, such as a resized copy of an image.
+     * Derived entries are removed along with their source, whether the source is removed,
+     * purged or evicted.
+     *
+     * @param key key of the source entry
+     * @param variant names the derived data, unique per source
+     * @return the derived key
+     */
+    @NonNull
+    public static String getDerivedKey(@NonNull final String key, @NonNull final String variant)
+    {
+        return key + DERIVED_KEY_SEPARATOR + variant;
+    }
 
-        @NonNull
-        private HashMap<String, Object> explodeMetaData()
+    @Override
+    public boolean doesDataExist(@NonNull String key)
+    {
+        if (UUString.isEmpty(key))
         {
-            HashMap<String, Object> m = new HashMap<>();
+            return false;
+        }
 
-            try
-            {
-                JSONObject json = new JSONObject(metaData);
+        // Answered from the in-memory index so this never touches the file system or the
+        // database, and is false until the index has loaded.  Rows without a file name only
+        // hold meta data.
+        IndexEntry entry = peekIndexEntry(key);
+        return (entry != null && entry.hasData());
+    }
 
-                Iterator<String> keys = json.keys();
-                while (keys.hasNext())
+    @Override
+    public boolean isDataExpired(@NonNull String key)
+    {
+        IndexEntry entry = peekIndexEntry(key);
+        return (entry != null && entry.isExpired(System.currentTimeMillis(), contentExpirationLength));
+    }
+
+    /**
+     * Checks whether a key holds expired data that was kept for revalidation.  Stale data is
+     * only returned by getStaleData until its expiration is pushed out, normally by setting
+     * MetaData.ExpiresAt once the owner confirms the data is still current.
+     *
+     * @param key lookup key
+     * @return true if the data is expired, still on disk, and has a validator.  False until
+     *         the index has loaded.
+     */
+    public boolean isDataStale(@NonNull final String key)
+    {
+        IndexEntry entry = peekIndexEntry(key);
+        return (entry != null && entry.isStale(System.currentTimeMillis(), contentExpirationLength));
+    }
+
+    @Override
+    public void removeData(@NonNull String key)
+    {
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
+        {
+            removeEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        removeDerivedEntries(key);
+    }
+
+    @Override
+    public void clearCache()
+    {
+        ArrayList<Lock> locks = lockAllStripes();
+
+        try
+        {
+            clearDiskCache();
+            clearMemoryCache();
+
+            synchronized (pendingAccessTimes)
+            {
+                pendingAccessTimes.clear();
+            }
+
+            synchronized (metaDataIndex)
+            {
+                metaDataIndex.clear();
+                metaDataIndexLoaded = true;
+            }
+
+            metaDataCache.evictAll();
+            metaDataDb.clearAllMetaData();
+            diskCacheSize.set(0);
+        }
+        finally
+        {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public void purgeExpiredData()
+    {
+        try
+        {
+            long start = System.currentTimeMillis();
+
+            ArrayList<String> keys = metaDataDb.listExpiredKeys(start, contentExpirationLength);
+            keys.removeAll(metaDataDb.listStaleKeys(start, contentExpirationLength));
+            if (!keys.isEmpty())
+            {
+                removeEntries(addDerivedKeys(keys));
+            }
+
+            UULog.debug(getClass(), "purgeExpiredData", "Purged " + keys.size() + " entries in " + (System.currentTimeMillis() - start) + " millis");
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "purgeExpiredData", ex);
+        }
+    }
+
+    @Override
+    public long getDataExpirationInterval()
+    {
+        return contentExpirationLength;
+    }
+
+    @Override
+    public void setDataExpirationInterval(long interval)
+    {
+        contentExpirationLength = interval;
+    }
+
+    @NonNull
+    @Override
+    public ArrayList<String> listKeys()
+    {
+        ArrayList<String> results = new ArrayList<>();
+
+        try
+        {
+            loadMetaDataIndexIfNeeded();
+
+            synchronized (metaDataIndex)
+            {
+                for (Map.Entry<String, IndexEntry> entry : metaDataIndex.entrySet())
+                {
+                    if (entry.getValue().fileName != null)
+                    {
+                        results.add(entry.getKey());
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "listKeys", ex);
+            results = new ArrayList<>();
+        }
+
+        return results;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Asynchronous Interface
+    //
+    // Each method runs its blocking counterpart on a small pool of I/O threads owned by the
+    // cache.  Calls for the same key run in the order they were made, so a getDataAsync queued
+    // after a setDataAsync always sees the new data.  Delegates are invoked on the I/O thread.
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Loads data for a key off the calling thread
+     *
+     * @param key lookup key
+     * @param delegate receives the data, or null if it does not exist
+     */
+    public void getDataAsync(@NonNull final String key, @NonNull final UUObjectDelegate<byte[]> delegate)
+    {
+        ioExecutor.execute(key, () -> UUObjectDelegate.safeInvoke(delegate, getData(key)));
+    }
+
+    /**
+     * Stores data for a key off the calling thread
+     *
+     * @param data the data to store
+     * @param key lookup key
+     * @param delegate optional, receives true if the data was stored
+     */
+    public void setDataAsync(@NonNull final byte[] data, @NonNull final String key, @Nullable final UUNonNullObjectDelegate<Boolean> delegate)
+    {
+        ioExecutor.execute(key, () ->
+        {
+            setData(data, key);
+
+            IndexEntry entry = getIndexEntry(key);
+            UUNonNullObjectDelegate.safeInvoke(delegate, (entry != null && entry.hasData()));
+        });
+    }
+
+    /**
+     * Removes data for a key off the calling thread
+     *
+     * @param key lookup key
+     * @param delegate optional, invoked once the data is gone
+     */
+    public void removeDataAsync(@NonNull final String key, @Nullable final Runnable delegate)
+    {
+        ioExecutor.execute(key, () ->
+        {
+            removeData(key);
+
+            if (delegate != null)
+            {
+                delegate.run();
+            }
+        });
+    }
+
+    /**
+     * Loads the meta data for a key off the calling thread
+     *
+     * @param key lookup key
+     * @param delegate receives the meta data, which is empty if none exists
+     */
+    public void getMetaDataAsync(@NonNull final String key, @NonNull final UUNonNullObjectDelegate<HashMap<String, Object>> delegate)
+    {
+        ioExecutor.execute(key, () -> UUNonNullObjectDelegate.safeInvoke(delegate, getMetaData(key)));
+    }
+
+    /**
+     * Stores the meta data for a key off the calling thread
+     *
+     * @param metaData the meta data to store
+     * @param key lookup key
+     * @param delegate optional, invoked once the meta data is stored
+     */
+    public void setMetaDataAsync(@NonNull final HashMap<String, Object> metaData, @NonNull final String key, @Nullable final Runnable delegate)
+    {
+        ioExecutor.execute(key, () ->
+        {
+            setMetaData(metaData, key);
+
+            if (delegate != null)
+            {
+                delegate.run();
+            }
+        });
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Partial Data
+    //
+    // A long write, such as a large download, can be left partly done and picked up again
+    // later.  The partial bytes are stored uncompressed next to a validator naming the version
+    // of the data they belong to.  They are kept apart from the committed object for the key,
+    // which stays readable until the partial data is finished and replaces it.
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the validator partial data for a key was written with
+     *
+     * @param key lookup key
+     * @return the validator, or null if there is no partial data
+     */
+    @Nullable
+    public String getPartialDataValidator(@NonNull final String key)
+    {
+        File validatorFile = getPartialValidatorFile(key);
+        if (!validatorFile.exists() || !getPartialFile(key).exists())
+        {
+            return null;
+        }
+
+        byte[] validator = UUFile.readFile(validatorFile);
+        return (validator != null ? UUString.byteToUtf8String(validator) : null);
+    }
+
+    /**
+     * Gets how many bytes of partial data are stored for a key
+     *
+     * @param key lookup key
+     * @return a byte count, zero if there is no partial data
+     */
+    public long getPartialDataLength(@NonNull final String key)
+    {
+        File file = getPartialFile(key);
+        return (file.exists() ? file.length() : 0);
+    }
+
+    /**
+     * Opens a stream that writes partial data for a key.  Closing the stream commits the
+     * partial data as the object for the key.  Aborting it keeps what was written so far, to
+     * be resumed by a later call.
+     *
+     * @param key lookup key
+     * @param validator names the version of the data being written
+     * @param offset where to resume writing.  Zero starts over, anything else must be no more
+     *               than the stored length and match the stored validator.  Bytes past the
+     *               offset are dropped.
+     * @return an output stream, or null if the partial data cannot be resumed at the offset
+     */
+    @Nullable
+    public CacheOutputStream openPartialOutputStream(@NonNull final String key, @NonNull final String validator, final long offset)
+    {
+        RandomAccessFile raf = null;
+
+        try
+        {
+            File file = getPartialFile(key);
+            UUFile.createFoldersIfNeeded(file.getParentFile());
+
+            if (offset > 0)
+            {
+                if (!validator.equals(getPartialDataValidator(key)) || file.length() < offset)
+                {
+                    return null;
+                }
+
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(offset);
+                raf.close();
+                raf = null;
+            }
+            else if (!UUFile.writeFile(getPartialValidatorFile(key), UUString.stringToUtf8Bytes(validator)))
+            {
+                return null;
+            }
+
+            return new CacheOutputStream(key, file, (offset > 0));
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "openPartialOutputStream", ex);
+        }
+        finally
+        {
+            UUCloseable.safeClose(raf);
+        }
+
+        return null;
+    }
+
+    /**
+     * Discards any partial data for a key.  The committed object is not affected.
+     *
+     * @param key lookup key
+     */
+    public void removePartialData(@NonNull final String key)
+    {
+        UUFile.deleteFile(getPartialFile(key));
+        UUFile.deleteFile(getPartialValidatorFile(key));
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Private Implementation
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static @NonNull File defaultCacheFolder(@NonNull final Context context)
+    {
+        return new File(context.getCacheDir(), "UUDataCache");
+    }
+
+    /**
+     * The file name used by the original flat folder layout.  Only needed to migrate
+     * existing caches.
+     */
+    @NonNull
+    private static String legacyFileName(@NonNull final String key)
+    {
+        return key.replaceAll("[^A-Za-z0-9]", "-");
+    }
+
+    /**
+     * Builds a fixed length file name from a SHA-256 digest of the key, placed in one of 256
+     * sub folders named after the first byte of the digest.
+     *
+     * @param key lookup key
+     * @return a path relative to the cache folder
+     */
+    @NonNull
+    private static String hashedFileName(@NonNull final String key)
+    {
+        String hash = digest(UUString.stringToUtf8Bytes(key));
+        return hash.substring(0, 2) + "/" + hash;
+    }
+
+    @NonNull
+    private static String sharedFileName(@NonNull final String digest, @Nullable final String encoding)
+    {
+        String name = BLOB_FOLDER_NAME + "/" + digest.substring(0, 2) + "/" + digest;
+        if (encoding != null)
+        {
+            name += "." + encoding;
+        }
+
+        return name;
+    }
+
+    private static boolean isSharedFileName(@NonNull final String fileName)
+    {
+        return fileName.startsWith(BLOB_FOLDER_NAME + "/");
+    }
+
+    @NonNull
+    private static String digest(@NonNull final byte[] data)
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return UUString.byteToHex(md.digest(data)).toLowerCase(Locale.US);
+        }
+        catch (Exception ex)
+        {
+            // SHA-256 is always available on Android
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Gets the file that holds an entry's data on disk.  Entries with a text mime type may be
+     * stored deflated, so reading this file directly only gives the original bytes when the
+     * entry is not compressed.  Prefer getData or openInputStream, which always return the
+     * original bytes.
+     *
+     * @param key lookup key
+     * @return the file, which may not exist
+     */
+    @NonNull
+    public File getDiskFileName(@NonNull final String key)
+    {
+        IndexEntry entry = getIndexEntry(key);
+        if (entry != null && entry.fileName != null)
+        {
+            return new File(cacheFolder, entry.fileName);
+        }
+
+        return new File(cacheFolder, hashedFileName(key));
+    }
+
+    /**
+     * Moves files written with the original flat, sanitized name layout into the hashed
+     * layout.  Files whose key is not known from the meta data are deleted.  Once done, the
+     * cache folder holds only sub folders, so later runs stop after a single listFiles.
+     */
+    private void migrateLegacyFileLayout()
+    {
+        try
+        {
+            File[] files = cacheFolder.listFiles();
+            if (files == null)
+            {
+                return;
+            }
+
+            HashMap<String, File> legacyFiles = new HashMap<>();
+            for (File f : files)
+            {
+                if (f.isFile())
+                {
+                    legacyFiles.put(f.getName(), f);
+                }
+            }
+
+            if (legacyFiles.isEmpty())
+            {
+                return;
+            }
+
+            UULog.debug(getClass(), "migrateLegacyFileLayout", "Migrating " + legacyFiles.size() + " files");
+
+            HashMap<String, String> fileNames = new HashMap<>();
+
+            for (String key : metaDataDb.listAllKeys())
+            {
+                File legacy = legacyFiles.remove(legacyFileName(key));
+                if (legacy != null)
+                {
+                    String fileName = hashedFileName(key);
+                    File dest = new File(cacheFolder, fileName);
+                    UUFile.createFoldersIfNeeded(dest.getParentFile());
+
+                    if (legacy.renameTo(dest))
+                    {
+                        fileNames.put(key, fileName);
+                    }
+                }
+            }
+
+            metaDataDb.updateFileNames(fileNames);
+
+            synchronized (metaDataIndex)
+            {
+                for (String key : fileNames.keySet())
+                {
+                    IndexEntry entry = metaDataIndex.get(key);
+                    if (entry != null)
+                    {
+                        entry.fileName = fileNames.get(key);
+                    }
+                }
+            }
+
+            for (File orphan : legacyFiles.values())
+            {
+                UUFile.deleteFile(orphan);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "migrateLegacyFileLayout", ex);
+        }
+    }
+
+    /**
+     * Removes an expired entry.  Entries with a validator are left in place as stale so
+     * their owner can revalidate them rather than fetch them again.
+     *
+     * @return true if the entry is expired and must not be read
+     */
+    private boolean removeIfExpired(@NonNull final String key)
+    {
+        // Callers are about to read from disk anyway, so waiting for the index is fine here
+        IndexEntry entry = getIndexEntry(key);
+        if (entry == null || !entry.isExpired(System.currentTimeMillis(), contentExpirationLength))
+        {
+            return false;
+        }
+
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
+        {
+            // Another thread may have rewritten the entry while we waited for the lock
+            long now = System.currentTimeMillis();
+            entry = getIndexEntry(key);
+            if (entry == null || !entry.isExpired(now, contentExpirationLength))
+            {
+                return false;
+            }
+
+            // Stale entries stay on disk for their owner to revalidate
+            if (entry.isStale(now, contentExpirationLength))
+            {
+                return true;
+            }
+
+            removeEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        removeDerivedEntries(key);
+        return true;
+    }
+
+    /**
+     * Drops an indexed entry whose file has gone missing, for example because the system
+     * cleared the cache folder, so that doesDataExist stops reporting it.
+     */
+    private void removeIfMissing(@NonNull final String key)
+    {
+        IndexEntry entry = getIndexEntry(key);
+        if (entry == null || entry.fileName == null)
+        {
+            return;
+        }
+
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
+        {
+            entry = getIndexEntry(key);
+            if (entry == null || !entry.hasData() || getDiskFileName(key).exists())
+            {
+                return;
+            }
+
+            UULog.debug(getClass(), "removeIfMissing", "Removing entry with missing file: " + key);
+            removeEntry(key);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        removeDerivedEntries(key);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Key Locks
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private int lockStripe(@NonNull final String key)
+    {
+        return (key.hashCode() & 0x7FFFFFFF) % keyLocks.length;
+    }
+
+    @NonNull
+    private Lock readLock(@NonNull final String key)
+    {
+        return keyLocks[lockStripe(key)].readLock();
+    }
+
+    @NonNull
+    private Lock writeLock(@NonNull final String key)
+    {
+        return keyLocks[lockStripe(key)].writeLock();
+    }
+
+    /**
+     * Acquires the write locks for every stripe touched by a set of keys.  Stripes are always
+     * locked in ascending order so two bulk operations can never deadlock each other.
+     */
+    @NonNull
+    private ArrayList<Lock> lockStripes(@NonNull final ArrayList<String> keys)
+    {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String key : keys)
+        {
+            stripes.add(lockStripe(key));
+        }
+
+        ArrayList<Lock> locks = new ArrayList<>();
+        for (Integer stripe : stripes)
+        {
+            Lock lock = keyLocks[stripe].writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+
+        return locks;
+    }
+
+    @NonNull
+    private ArrayList<Lock> lockAllStripes()
+    {
+        ArrayList<Lock> locks = new ArrayList<>();
+        for (ReentrantReadWriteLock keyLock : keyLocks)
+        {
+            Lock lock = keyLock.writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+
+        return locks;
+    }
+
+    private void unlockAll(@NonNull final ArrayList<Lock> locks)
+    {
+        for (int i = locks.size() - 1; i >= 0; i--)
+        {
+            locks.get(i).unlock();
+        }
+    }
+
+    @Nullable
+    private byte[] loadFromDisk(@NonNull final String key)
+    {
+        byte[] data = null;
+
+        try
+        {
+            File pathUrl = getDiskFileName(key);
+            data = UUFile.readFile(pathUrl);
+
+            if (data != null && isCompressed(key))
+            {
+                data = UUCompression.inflate(data);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "loadFromDisk", ex);
+        }
+
+        return data;
+    }
+
+    @Nullable
+    private byte[] loadFromCache(@NonNull final String key)
+    {
+        byte[] data = null;
+
+        try
+        {
+            data = memoryCache.get(key);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "loadFromCache", ex);
+        }
+
+        return data;
+    }
+
+    /**
+     * Removes everything stored for a key.  The caller must hold the key's write lock.
+     */
+    private void removeEntry(@NonNull final String key)
+    {
+        IndexEntry entry = removeAllMetaData(key);
+        removeFileFromCache(key);
+
+        if (entry != null && entry.fileName != null)
+        {
+            releaseFile(entry.fileName, entry.size);
+        }
+        else
+        {
+            UUFile.deleteFile(new File(cacheFolder, hashedFileName(key)));
+        }
+    }
+
+    /**
+     * Drops a reference to a file on disk once its meta data row is gone.  Per key files are
+     * deleted outright, while shared payloads are only deleted when no other row refers to them.
+     */
+    private void releaseFile(@NonNull final String fileName, final long size)
+    {
+        try
+        {
+            if (isSharedFileName(fileName))
+            {
+                synchronized (blobLock)
+                {
+                    if (metaDataDb.countFileReferences(fileName) > 0)
+                    {
+                        return;
+                    }
+
+                    UUFile.deleteFile(new File(cacheFolder, fileName));
+                }
+            }
+            else
+            {
+                UUFile.deleteFile(new File(cacheFolder, fileName));
+            }
+
+            diskCacheSize.addAndGet(-size);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "releaseFile", ex);
+        }
+    }
+
+    private void removeFileFromCache(@NonNull String key)
+    {
+        try
+        {
+            memoryCache.remove(key);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeFileFromCache", ex);
+        }
+    }
+
+    @Nullable
+    private IndexEntry removeAllMetaData(@NonNull String key)
+    {
+        IndexEntry entry = null;
+
+        try
+        {
+            synchronized (pendingAccessTimes)
+            {
+                pendingAccessTimes.remove(key);
+            }
+
+            entry = removeIndexEntry(key);
+            metaDataDb.removeMetaData(key);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeAllMetaData", ex);
+        }
+
+        return entry;
+    }
+
+    private void saveToCache(@NonNull byte[] data, @NonNull String key)
+    {
+        try
+        {
+            if (data.length <= (memoryCache.maxSize() / MEMORY_CACHE_MAX_ENTRY_DIVISOR))
+            {
+                memoryCache.put(key, data);
+            }
+            else
+            {
+                memoryCache.remove(key);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "saveToCache", ex);
+        }
+    }
+
+    /**
+     * Records the meta data, size and index entry for data that was just written to disk
+     */
+    private void recordWrite(@NonNull final String key, final long size, @Nullable final String encoding, @NonNull final String fileName, final boolean createdFile)
+    {
+        long now = System.currentTimeMillis();
+        HashMap<String, Object> md = getMetaData(key);
+        md.put(MetaData.Timestamp, now);
+
+        // Expiration and validator described the data being replaced
+        md.remove(MetaData.ExpiresAt);
+        md.remove(MetaData.Validator);
+
+        UUDataCacheMetaData row = metaDataDb.setEntry(key, md, size, now, fileName, encoding);
+
+        IndexEntry previous = updateIndex(row);
+        long added = (createdFile ? size : 0);
+
+        if (previous != null && previous.fileName != null)
+        {
+            if (!previous.fileName.equals(fileName))
+            {
+                // The key moved to a different file, so its old one loses a reference
+                releaseFile(previous.fileName, previous.size);
+            }
+            else if (!isSharedFileName(fileName))
+            {
+                // The per key file was replaced in place
+                added -= previous.size;
+            }
+        }
+
+        diskCacheSize.addAndGet(added);
+        scheduleDiskTrimIfNeeded();
+    }
+
+    private boolean isCompressed(@NonNull final String key)
+    {
+        IndexEntry entry = getIndexEntry(key);
+        return (entry != null && ENCODING_DEFLATE.equals(entry.encoding));
+    }
+
+    /**
+     * Compresses data bound for disk when the entry is large enough and likely to benefit.
+     *
+     * @return the compressed bytes, or null if the data should be stored as is
+     */
+    @Nullable
+    private byte[] compressIfNeeded(@NonNull final byte[] data, @NonNull final String key)
+    {
+        if (!compressionEnabled || data.length < compressionThreshold)
+        {
+            return null;
+        }
+
+        // Data of unknown type is left alone, callers that read files directly may expect
+        // the original bytes
+        IndexEntry entry = getIndexEntry(key);
+        String mimeType = (entry != null ? entry.mimeType : null);
+        if (mimeType == null || !isCompressibleMimeType(mimeType))
+        {
+            return null;
+        }
+
+        byte[] compressed = UUCompression.deflate(data);
+        if (compressed == null || compressed.length > (data.length * COMPRESSION_MIN_SAVINGS_RATIO))
+        {
+            return null;
+        }
+
+        return compressed;
+    }
+
+    static boolean isCompressibleMimeType(@NonNull final String mimeType)
+    {
+        String mt = mimeType.toLowerCase(Locale.US);
+
+        int paramStart = mt.indexOf(';');
+        if (paramStart >= 0)
+        {
+            mt = mt.substring(0, paramStart).trim();
+        }
+
+        return (mt.startsWith("text/") ||
+                mt.endsWith("+json") ||
+                mt.endsWith("+xml") ||
+                mt.equals("application/json") ||
+                mt.equals("application/xml") ||
+                mt.equals("application/javascript") ||
+                mt.equals("application/x-javascript"));
+    }
+
+    @NonNull
+    private File getTempFolder()
+    {
+        return new File(new File(cacheFolder, TEMP_FOLDER_NAME), tempFolderName);
+    }
+
+    @NonNull
+    private File getPartialFile(@NonNull final String key)
+    {
+        return new File(new File(cacheFolder, PARTIAL_FOLDER_NAME), hashedFileName(key));
+    }
+
+    @NonNull
+    private File getPartialValidatorFile(@NonNull final String key)
+    {
+        return new File(new File(cacheFolder, PARTIAL_FOLDER_NAME), hashedFileName(key) + PARTIAL_VALIDATOR_EXTENSION);
+    }
+
+    /**
+     * Deletes the temp files of earlier launches.  Writes that were in flight when the app
+     * was killed never get renamed into place, so anything outside this instance's temp
+     * folder is garbage.
+     */
+    private void removeAbandonedTempFiles()
+    {
+        try
+        {
+            File[] files = new File(cacheFolder, TEMP_FOLDER_NAME).listFiles();
+            if (files == null)
+            {
+                return;
+            }
+
+            for (File file : files)
+            {
+                if (!file.getName().equals(tempFolderName))
+                {
+                    UUFile.deleteFile(file);
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeAbandonedTempFiles", ex);
+        }
+    }
+
+    /**
+     * Deletes partial data that has not been written to in a long time
+     */
+    private void removeAbandonedPartialData()
+    {
+        try
+        {
+            File[] folders = new File(cacheFolder, PARTIAL_FOLDER_NAME).listFiles();
+            if (folders == null)
+            {
+                return;
+            }
+
+            long cutoff = System.currentTimeMillis() - PARTIAL_DATA_MAX_AGE;
+
+            for (File folder : folders)
+            {
+                File[] files = folder.listFiles();
+                if (files == null)
+                {
+                    continue;
+                }
+
+                for (File file : files)
+                {
+                    if (file.lastModified() < cutoff)
+                    {
+                        UUFile.deleteFile(file);
+                    }
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeAbandonedPartialData", ex);
+        }
+    }
+
+    @NonNull
+    private File createTempFile()
+    {
+        File folder = getTempFolder();
+        UUFile.createFoldersIfNeeded(folder);
+        return new File(folder, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Moves a fully written temp file into place for a key.  The rename is atomic, so a
+     * reader sees either the old or the new object, never a partial one.  Only the rename
+     * and bookkeeping happen under the key's write lock; the slow write to the temp file
+     * does not block readers.
+     *
+     * @param data when not null, the uncompressed bytes, which are put in the memory cache
+     * @param encoding the encoding of the temp file contents, or null if stored as is
+     */
+    private boolean commitTempFile(@NonNull final File tempFile, @NonNull final String key, @Nullable final byte[] data, @Nullable final String encoding)
+    {
+        File dest = new File(cacheFolder, hashedFileName(key));
+        UUFile.createFoldersIfNeeded(dest.getParentFile());
+
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
+        {
+            if (!tempFile.renameTo(dest))
+            {
+                UULog.warn(getClass(), "commitTempFile", "Unable to rename " + tempFile + " to " + dest);
+                UUFile.deleteFile(tempFile);
+                return false;
+            }
+
+            if (data != null)
+            {
+                saveToCache(data, key);
+            }
+            else
+            {
+                removeFileFromCache(key);
+            }
+
+            recordWrite(key, dest.length(), encoding, hashedFileName(key), true);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stores data in the content addressed area and points the key at it.  Identical payloads
+     * are only written once; later keys just add a reference.
+     *
+     * @param data the uncompressed bytes, which are put in the memory cache
+     * @param stored the bytes as they are written to disk
+     * @param encoding the encoding of the stored bytes, or null if stored as is
+     */
+    private void setSharedData(@NonNull final byte[] data, @NonNull final byte[] stored, @Nullable final String encoding, @NonNull final String key)
+    {
+        String fileName = sharedFileName(digest(data), encoding);
+        File dest = new File(cacheFolder, fileName);
+
+        // Write outside of any lock unless the payload is already on disk
+        File tempFile = null;
+        if (!dest.exists())
+        {
+            tempFile = createTempFile();
+            if (!UUFile.writeFile(tempFile, stored))
+            {
+                UUFile.deleteFile(tempFile);
+                return;
+            }
+        }
+
+        Lock lock = writeLock(key);
+        lock.lock();
+
+        try
+        {
+            synchronized (blobLock)
+            {
+                boolean created = false;
+
+                if (dest.exists())
+                {
+                    if (tempFile != null)
+                    {
+                        UUFile.deleteFile(tempFile);
+                    }
+                }
+                else
+                {
+                    // The payload may have been released since the check above
+                    UUFile.createFoldersIfNeeded(dest.getParentFile());
+                    created = (tempFile != null ? tempFile.renameTo(dest) : UUFile.writeFile(dest, stored));
+
+                    if (!created)
+                    {
+                        UULog.warn(getClass(), "setSharedData", "Unable to write " + dest);
+
+                        if (tempFile != null)
+                        {
+                            UUFile.deleteFile(tempFile);
+                        }
+
+                        return;
+                    }
+                }
+
+                saveToCache(data, key);
+                recordWrite(key, dest.length(), encoding, fileName, created);
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the index from the database if that has not happened yet.  Never call this while
+     * holding the metaDataIndex monitor.
+     */
+    private void loadMetaDataIndexIfNeeded()
+    {
+        if (metaDataIndexLoaded)
+        {
+            return;
+        }
+
+        synchronized (metaDataIndexLoadLock)
+        {
+            if (metaDataIndexLoaded)
+            {
+                return;
+            }
+
+            long start = System.currentTimeMillis();
+            HashMap<String, IndexEntry> loaded = new HashMap<>();
+            metaDataDb.loadIndex(loaded);
+
+            // Every change to the index waits for the load first, so nothing can have been
+            // added in the meantime.  A clearCache during the load marks the index loaded and
+            // empty, and what was read is dropped.
+            synchronized (metaDataIndex)
+            {
+                if (!metaDataIndexLoaded)
+                {
+                    metaDataIndex.putAll(loaded);
+                    metaDataIndexLoaded = true;
+                }
+            }
+
+            UULog.debug(getClass(), "loadMetaDataIndexIfNeeded", "Loaded " + loaded.size() + " entries in " + (System.currentTimeMillis() - start) + " millis");
+        }
+    }
+
+    /**
+     * Looks up an index entry, loading the index first if needed.  Only for paths that are
+     * about to touch the disk or the database anyway.
+     */
+    @Nullable
+    private IndexEntry getIndexEntry(@NonNull final String key)
+    {
+        loadMetaDataIndexIfNeeded();
+
+        synchronized (metaDataIndex)
+        {
+            return metaDataIndex.get(key);
+        }
+    }
+
+    /**
+     * Drops the in-memory index so the next lookup that needs it reads it again, as on a
+     * cold start.  Only used by tests.
+     */
+    void unloadMetaDataIndex()
+    {
+        synchronized (metaDataIndex)
+        {
+            metaDataIndex.clear();
+            metaDataIndexLoaded = false;
+        }
+    }
+
+    /**
+     * Looks up an index entry without ever waiting on the database
+     *
+     * @return the entry, or null if there is none or the index has not loaded yet
+     */
+    @Nullable
+    private IndexEntry peekIndexEntry(@NonNull final String key)
+    {
+        if (!metaDataIndexLoaded)
+        {
+            return null;
+        }
+
+        synchronized (metaDataIndex)
+        {
+            return metaDataIndex.get(key);
+        }
+    }
+
+    /**
+     * Applies sizes filled in by backfillSizes to entries that were indexed before it ran
+     */
+    private void updateIndexSizes(@NonNull final HashMap<String, Long> sizes)
+    {
+        if (sizes.isEmpty())
+        {
+            return;
+        }
+
+        synchronized (metaDataIndex)
+        {
+            for (Map.Entry<String, Long> size : sizes.entrySet())
+            {
+                IndexEntry entry = metaDataIndex.get(size.getKey());
+                if (entry != null)
+                {
+                    entry.size = size.getValue();
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the index entry for a row
+     *
+     * @return the entry that was previously indexed, if any
+     */
+    @Nullable
+    private IndexEntry updateIndex(@Nullable final UUDataCacheMetaData row)
+    {
+        if (row == null)
+        {
+            return null;
+        }
+
+        metaDataCache.put(row.name, row.explodeMetaData());
+        loadMetaDataIndexIfNeeded();
+
+        synchronized (metaDataIndex)
+        {
+            IndexEntry entry = new IndexEntry(row);
+            IndexEntry previous = metaDataIndex.put(row.name, entry);
+            if (previous != null)
+            {
+                // Access times may not be flushed to the database yet
+                entry.lastAccess = Math.max(entry.lastAccess, previous.lastAccess);
+            }
+
+            return previous;
+        }
+    }
+
+    @Nullable
+    private IndexEntry removeIndexEntry(@NonNull final String key)
+    {
+        metaDataCache.remove(key);
+        loadMetaDataIndexIfNeeded();
+
+        synchronized (metaDataIndex)
+        {
+            return metaDataIndex.remove(key);
+        }
+    }
+
+    private void recordAccess(@NonNull final String key)
+    {
+        try
+        {
+            boolean scheduleFlush;
+            long now = System.currentTimeMillis();
+
+            synchronized (metaDataIndex)
+            {
+                IndexEntry entry = metaDataIndex.get(key);
+                if (entry != null)
+                {
+                    entry.lastAccess = now;
+                }
+            }
+
+            synchronized (pendingAccessTimes)
+            {
+                scheduleFlush = pendingAccessTimes.isEmpty();
+                pendingAccessTimes.put(key, now);
+            }
+
+            // Access times are batched so that reads never wait on a database write
+            if (scheduleFlush)
+            {
+                workerThread.postDelayed(this::flushAccessTimes, ACCESS_TIME_FLUSH_DELAY);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "recordAccess", ex);
+        }
+    }
+
+    private void flushAccessTimes()
+    {
+        try
+        {
+            HashMap<String, Long> accessTimes;
+
+            synchronized (pendingAccessTimes)
+            {
+                accessTimes = new HashMap<>(pendingAccessTimes);
+                pendingAccessTimes.clear();
+            }
+
+            if (!accessTimes.isEmpty())
+            {
+                metaDataDb.updateLastAccess(accessTimes);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "flushAccessTimes", ex);
+        }
+    }
+
+    private void scheduleDiskTrimIfNeeded()
+    {
+        if (diskCacheLimit > 0 &&
+            diskCacheSize.get() > diskCacheLimit &&
+            diskTrimPending.compareAndSet(false, true))
+        {
+            workerThread.post(this::trimDiskCache);
+        }
+    }
+
+    private void trimDiskCache()
+    {
+        try
+        {
+            flushAccessTimes();
+
+            long total = metaDataDb.totalSize();
+            long limit = diskCacheLimit;
+
+            if (limit > 0 && total > limit)
+            {
+                long target = (long)(limit * DISK_CACHE_TRIM_RATIO);
+                String lastBatchHead = null;
+
+                while (total > target)
+                {
+                    ArrayList<UUDataCacheMetaData> batch = metaDataDb.listLeastRecentlyAccessed(DISK_CACHE_TRIM_BATCH_SIZE);
+
+                    // Stop if nothing was removed by the previous pass, rather than spin
+                    if (batch.isEmpty() || batch.get(0).name.equals(lastBatchHead))
+                    {
+                        break;
+                    }
+
+                    lastBatchHead = batch.get(0).name;
+
+                    ArrayList<String> evicted = new ArrayList<>();
+
+                    for (UUDataCacheMetaData row : batch)
+                    {
+                        UULog.debug(getClass(), "trimDiskCache", "Evicting " + row.name + ", size: " + row.size + ", lastAccess: " + row.lastAccess);
+                        evicted.add(row.name);
+                        total -= row.size;
+
+                        if (total <= target)
+                        {
+                            break;
+                        }
+                    }
+
+                    removeEntries(addDerivedKeys(evicted));
+
+                    // Rows that share a payload free less than their sizes add up to
+                    total = metaDataDb.totalSize();
+                }
+            }
+
+            diskCacheSize.set(metaDataDb.totalSize());
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "trimDiskCache", ex);
+        }
+        finally
+        {
+            diskTrimPending.set(false);
+        }
+    }
+
+    private void handleScheduledPurge()
+    {
+        purgeExpiredData();
+
+        if (purgeInterval > 0)
+        {
+            workerThread.postDelayed(purgeRunnable, purgeInterval);
+        }
+    }
+
+    /**
+     * Removes a set of entries from both tiers, then deletes all of their meta data rows
+     * in a single transaction.
+     */
+    private void removeEntries(@NonNull final ArrayList<String> keys)
+    {
+        ArrayList<Lock> locks = lockStripes(keys);
+
+        try
+        {
+            HashMap<String, Long> files = new HashMap<>();
+
+            for (String key : keys)
+            {
+                removeFileFromCache(key);
+
+                synchronized (pendingAccessTimes)
+                {
+                    pendingAccessTimes.remove(key);
+                }
+
+                IndexEntry entry = removeIndexEntry(key);
+                if (entry != null && entry.fileName != null)
+                {
+                    files.put(entry.fileName, entry.size);
+                }
+                else
+                {
+                    UUFile.deleteFile(new File(cacheFolder, hashedFileName(key)));
+                }
+            }
+
+            // Rows go first so shared payloads see their remaining reference counts
+            metaDataDb.removeMetaData(keys);
+
+            for (Map.Entry<String, Long> file : files.entrySet())
+            {
+                releaseFile(file.getKey(), file.getValue());
+            }
+        }
+        finally
+        {
+            unlockAll(locks);
+        }
+    }
+
+    /**
+     * Removes the entries derived from a key.  Call without holding any key lock.
+     */
+    private void removeDerivedEntries(@NonNull final String key)
+    {
+        try
+        {
+            ArrayList<String> keys = metaDataDb.listDerivedKeys(key);
+            if (!keys.isEmpty())
+            {
+                removeEntries(keys);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "removeDerivedEntries", ex);
+        }
+    }
+
+    /**
+     * Adds the keys derived from each key to a list of keys about to be removed
+     */
+    @NonNull
+    private ArrayList<String> addDerivedKeys(@NonNull final ArrayList<String> keys)
+    {
+        LinkedHashSet<String> all = new LinkedHashSet<>(keys);
+
+        for (String key : keys)
+        {
+            all.addAll(metaDataDb.listDerivedKeys(key));
+        }
+
+        return new ArrayList<>(all);
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Warm Up
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @NonNull
+    private File getWarmUpManifestFile()
+    {
+        return new File(cacheFolder, WARM_UP_MANIFEST_PATH);
+    }
+
+    private void recordWarmUpKey(@NonNull final String key)
+    {
+        long window = warmUpWindow;
+        if (window <= 0 || (System.currentTimeMillis() - launchTime) > window)
+        {
+            return;
+        }
+
+        synchronized (warmUpKeys)
+        {
+            if (warmUpKeys.size() < WARM_UP_MAX_KEYS)
+            {
+                warmUpKeys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Loads the keys recorded on previous launches, most recent launch first
+     */
+    @NonNull
+    private ArrayList<ArrayList<String>> loadWarmUpManifest()
+    {
+        ArrayList<ArrayList<String>> launches = new ArrayList<>();
+
+        try
+        {
+            File file = getWarmUpManifestFile();
+            if (!file.exists())
+            {
+                return launches;
+            }
+
+            JSONArray json = new JSONArray(UUString.byteToUtf8String(UUFile.readFile(file)));
+            for (int i = 0; i < json.length(); i++)
+            {
+                JSONArray launchJson = json.optJSONArray(i);
+                if (launchJson == null)
+                {
+                    continue;
+                }
+
+                ArrayList<String> keys = new ArrayList<>();
+                for (int j = 0; j < launchJson.length(); j++)
+                {
+                    String key = launchJson.optString(j, null);
+                    if (key != null)
+                    {
+                        keys.add(key);
+                    }
+                }
+
+                launches.add(keys);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "loadWarmUpManifest", ex);
+        }
+
+        return launches;
+    }
+
+    /**
+     * Writes the keys read during this launch to the warm up manifest, keeping the keys from
+     * the few launches before it.
+     */
+    void saveWarmUpManifest()
+    {
+        try
+        {
+            if (warmUpWindow <= 0)
+            {
+                return;
+            }
+
+            JSONArray current = new JSONArray();
+            synchronized (warmUpKeys)
+            {
+                for (String key : warmUpKeys)
+                {
+                    current.put(key);
+                }
+            }
+
+            JSONArray json = new JSONArray();
+            json.put(current);
+
+            for (ArrayList<String> launch : loadWarmUpManifest())
+            {
+                if (json.length() >= WARM_UP_LAUNCH_HISTORY)
+                {
+                    break;
+                }
+
+                json.put(new JSONArray(launch));
+            }
+
+            File file = getWarmUpManifestFile();
+            UUFile.createFoldersIfNeeded(file.getParentFile());
+            UUFile.writeFile(file, UUString.stringToUtf8Bytes(json.toString()));
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "saveWarmUpManifest", ex);
+        }
+    }
+
+    /**
+     * Loads the entries read early on recent launches into the memory tier.  Meta data for all
+     * of them is fetched with a single query, and files are read in path order on this one
+     * thread rather than as scattered requests from whoever asks first.
+     */
+    void preloadWarmUpEntries()
+    {
+        try
+        {
+            long start = System.currentTimeMillis();
+
+            LinkedHashSet<String> recorded = new LinkedHashSet<>();
+            for (ArrayList<String> launch : loadWarmUpManifest())
+            {
+                recorded.addAll(launch);
+            }
+
+            long now = System.currentTimeMillis();
+            final HashMap<String, IndexEntry> entries = new HashMap<>();
+            ArrayList<String> keys = new ArrayList<>();
+
+            for (String key : recorded)
+            {
+                IndexEntry entry = getIndexEntry(key);
+                if (entry != null && entry.fileName != null && !entry.isExpired(now, contentExpirationLength))
+                {
+                    entries.put(key, entry);
+                    keys.add(key);
+                }
+
+                if (keys.size() >= WARM_UP_MAX_KEYS)
+                {
+                    break;
+                }
+            }
+
+            if (keys.isEmpty())
+            {
+                return;
+            }
+
+            for (UUDataCacheMetaData row : metaDataDb.getRows(keys))
+            {
+                metaDataCache.put(row.name, row.explodeMetaData());
+            }
+
+            Collections.sort(keys, (lhs, rhs) -> entries.get(lhs).fileName.compareTo(entries.get(rhs).fileName));
+
+            long budget = (long)(memoryCache.maxSize() * WARM_UP_MEMORY_RATIO);
+            int loaded = 0;
+
+            for (String key : keys)
+            {
+                IndexEntry entry = entries.get(key);
+                if ((memoryCache.size() + entry.size) > budget || loadFromCache(key) != null)
+                {
+                    continue;
+                }
+
+                Lock lock = readLock(key);
+                lock.lock();
+
+                try
+                {
+                    byte[] data = loadFromDisk(key);
+                    if (data != null && (memoryCache.size() + data.length) <= budget)
+                    {
+                        saveToCache(data, key);
+                        ++loaded;
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+
+            UULog.debug(getClass(), "preloadWarmUpEntries", "Preloaded " + loaded + " of " + keys.size() + " entries in " + (System.currentTimeMillis() - start) + " millis");
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "preloadWarmUpEntries", ex);
+        }
+    }
+
+    private void clearDiskCache()
+    {
+        try
+        {
+            UUFile.deleteFile(cacheFolder);
+            UUFile.createFoldersIfNeeded(cacheFolder);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "clearDiskCache", ex);
+        }
+    }
+
+    private void clearMemoryCache()
+    {
+        try
+        {
+            memoryCache.evictAll();
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "clearMemoryCache", ex);
+        }
+    }
+
+    /**
+     * The typed fields of a meta data row, kept in memory so that hot path checks such as
+     * expiration never need a query or a JSON parse.
+     */
+    static class IndexEntry
+    {
+        long timestamp;
+        long size;
+        String mimeType;
+        long lastAccess;
+        long expiresAt;
+        String fileName;
+        String encoding;
+        String validator;
+
+        IndexEntry()
+        {
+        }
+
+        IndexEntry(@NonNull final UUDataCacheMetaData row)
+        {
+            timestamp = row.timestamp;
+            size = row.size;
+            mimeType = row.mimeType;
+            lastAccess = row.lastAccess;
+            expiresAt = row.expiresAt;
+            fileName = row.fileName;
+            encoding = row.encoding;
+            validator = row.validator;
+        }
+
+        boolean hasData()
+        {
+            return (fileName != null);
+        }
+
+        boolean isStale(final long now, final long expirationLength)
+        {
+            return (fileName != null && validator != null && isExpired(now, expirationLength));
+        }
+
+        boolean isExpired(final long now, final long expirationLength)
+        {
+            if (expiresAt > 0)
+            {
+                return (now > expiresAt);
+            }
+
+            if (timestamp > 0)
+            {
+                return ((now - timestamp) > expirationLength);
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * Output stream returned by openOutputStream.  Bytes go to a temp file that replaces the
+     * cached object when the stream is closed.  Call abort to discard the data instead.
+     */
+    public class CacheOutputStream extends FilterOutputStream
+    {
+        private final String key;
+        private final File tempFile;
+        private final String encoding;
+        private final boolean partial;
+        private boolean closed = false;
+        private boolean aborted = false;
+
+        private CacheOutputStream(@NonNull final String key, @NonNull final File tempFile, @Nullable final String encoding) throws IOException
+        {
+            super(openFileStream(tempFile, encoding, false));
+            this.key = key;
+            this.tempFile = tempFile;
+            this.encoding = encoding;
+            this.partial = false;
+        }
+
+        private CacheOutputStream(@NonNull final String key, @NonNull final File partialFile, final boolean append) throws IOException
+        {
+            super(openFileStream(partialFile, null, append));
+            this.key = key;
+            this.tempFile = partialFile;
+            this.encoding = null;
+            this.partial = true;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException
+        {
+            // FilterOutputStream writes one byte at a time, so pass the whole range through
+            out.write(b, off, len);
+        }
+
+        /**
+         * Discards everything written so far, or for partial data keeps it to be resumed.
+         * The existing cached object, if any, is left as is.
+         */
+        public void abort()
+        {
+            aborted = true;
+            UUCloseable.safeClose(this);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+            {
+                return;
+            }
+
+            closed = true;
+
+            try
+            {
+                super.close();
+            }
+            catch (IOException ex)
+            {
+                if (!partial)
+                {
+                    UUFile.deleteFile(tempFile);
+                }
+
+                throw ex;
+            }
+
+            if (aborted)
+            {
+                if (!partial)
+                {
+                    UUFile.deleteFile(tempFile);
+                }
+
+                return;
+            }
+
+            boolean committed = commitTempFile(tempFile, key, null, encoding);
+
+            if (partial)
+            {
+                removePartialData(key);
+            }
+
+            if (!committed)
+            {
+                throw new IOException("Unable to commit cache data for key " + key);
+            }
+        }
+    }
+
+    @NonNull
+    private static OutputStream openFileStream(@NonNull final File file, @Nullable final String encoding, final boolean append) throws IOException
+    {
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(file, append), STREAM_BUFFER_SIZE);
+        return (ENCODING_DEFLATE.equals(encoding) ? UUCompression.deflateStream(os) : os);
+    }
+
+    static class MemoryCache extends LruCache<String, byte[]>
+    {
+        MemoryCache(final int cacheSize)
+        {
+            super(cacheSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, byte[] value)
+        {
+            // The cache size is measured in bytes rather than number of items.
+            return value.length;
+        }
+    }
+
+
+    @UUSqlTable(tableName = UUDataCacheMetaData.TABLE_NAME)
+    public static class UUDataCacheMetaData implements UUDataModel
+    {
+        static final String TABLE_NAME = "uu_data_cache_meta_data";
+        static final String NAME_COLUMN = "name";
+        static final String TIMESTAMP_COLUMN = "timestamp";
+        static final String META_DATA_COLUMN = "meta_data";
+        static final String SIZE_COLUMN = "size";
+        static final String LAST_ACCESS_COLUMN = "last_access";
+        static final String MIME_TYPE_COLUMN = "mime_type";
+        static final String EXPIRES_AT_COLUMN = "expires_at";
+        static final String FILE_NAME_COLUMN = "file_name";
+        static final String ENCODING_COLUMN = "encoding";
+        static final String VALIDATOR_COLUMN = "validator";
+
+        @UUSqlColumn(name = NAME_COLUMN, type = UUSqlColumn.Type.TEXT, primaryKey = true)
+        private String name;
+
+        @UUSqlColumn(name = TIMESTAMP_COLUMN, type = UUSqlColumn.Type.REAL)
+        private long timestamp;
+
+        @UUSqlColumn(name = META_DATA_COLUMN, type = UUSqlColumn.Type.TEXT)
+        private String metaData;
+
+        @UUSqlColumn(name = SIZE_COLUMN, type = UUSqlColumn.Type.INT_64, existsInVersion = 2)
+        private long size;
+
+        @UUSqlColumn(name = LAST_ACCESS_COLUMN, type = UUSqlColumn.Type.INT_64, existsInVersion = 2)
+        private long lastAccess;
+
+        @UUSqlColumn(name = MIME_TYPE_COLUMN, type = UUSqlColumn.Type.TEXT, existsInVersion = 3)
+        private String mimeType;
+
+        @UUSqlColumn(name = EXPIRES_AT_COLUMN, type = UUSqlColumn.Type.INT_64, existsInVersion = 3)
+        private long expiresAt;
+
+        @UUSqlColumn(name = FILE_NAME_COLUMN, type = UUSqlColumn.Type.TEXT, existsInVersion = 4)
+        private String fileName;
+
+        @UUSqlColumn(name = ENCODING_COLUMN, type = UUSqlColumn.Type.TEXT, existsInVersion = 5)
+        private String encoding;
+
+        @UUSqlColumn(name = VALIDATOR_COLUMN, type = UUSqlColumn.Type.TEXT, existsInVersion = 7)
+        private String validator;
+
+        @NonNull
+        private HashMap<String, Object> explodeMetaData()
+        {
+            HashMap<String, Object> m = new HashMap<>();
+
+            try
+            {
+                JSONObject json = new JSONObject(metaData);
+
+                Iterator<String> keys = json.keys();
+                while (keys.hasNext())
                 {
                     String key = keys.next();
                     Object val = UUJson.safeGet(json, key);
@@ -390,6 +2693,31 @@ public class UUDataCache implements UUDataCacheProtocol
             return m;
         }
 
+        /**
+         * Copies the well known meta data fields into their typed columns
+         */
+        private void setTypedFieldsFromHashMap(@NonNull final HashMap<String, Object> dictionary)
+        {
+            Object ts = dictionary.get(MetaData.Timestamp);
+            if (ts instanceof Long)
+            {
+                timestamp = (Long)ts;
+            }
+
+            Object mt = dictionary.get(MetaData.MimeType);
+            if (mt instanceof String)
+            {
+                mimeType = (String)mt;
+            }
+
+            // Meta data that has been through JSON may come back as an Integer
+            Object ea = dictionary.get(MetaData.ExpiresAt);
+            expiresAt = (ea instanceof Number ? ((Number)ea).longValue() : 0);
+
+            Object v = dictionary.get(MetaData.Validator);
+            validator = (v instanceof String ? (String)v : null);
+        }
+
         private void setMetaDataFromHashMap(@NonNull final HashMap<String, Object> dictionary)
         {
             try
@@ -414,20 +2742,69 @@ public class UUDataCache implements UUDataCacheProtocol
 //
 //        private static final int DB_VERSION = DB_VERSION_ONE;
 
-        UUDataCacheDb(@NonNull final Context context)
+        UUDataCacheDb(@NonNull final Context context, @NonNull final UUDatabaseDefinition databaseDefinition)
         {
-            super(context, new UUDataCacheDbSchema());
+            super(context, databaseDefinition);
         }
 
-        @NonNull
-        private HashMap<String, Object> getMetaData(@NonNull final String key)
+        @Override
+        protected void handlePostCreate(@NonNull UUSQLiteDatabase db, int version)
         {
-            String where = String.format(Locale.US, "%s = ?", "name");
+            createIndexes(db);
+        }
+
+        @Override
+        protected void handlePostUpgrade(@NonNull UUSQLiteDatabase db, int oldVersion, int newVersion)
+        {
+            if (oldVersion < 3)
+            {
+                // Rows written before per-entry expiration existed use the global interval
+                String sql = String.format(Locale.US, "UPDATE %s SET %s = 0 WHERE %s IS NULL",
+                    UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.EXPIRES_AT_COLUMN, UUDataCacheMetaData.EXPIRES_AT_COLUMN);
+                db.execSQL(sql, null);
+            }
+
+            createIndexes(db);
+        }
+
+        private void createIndexes(@NonNull UUSQLiteDatabase db)
+        {
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, "uu_data_cache_last_access_index", UUDataCacheMetaData.LAST_ACCESS_COLUMN), null);
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, "uu_data_cache_timestamp_index", UUDataCacheMetaData.TIMESTAMP_COLUMN), null);
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, "uu_data_cache_expires_at_index", UUDataCacheMetaData.EXPIRES_AT_COLUMN), null);
+            db.execSQL(UUSql.buildCreateIndexSql(UUDataCacheMetaData.TABLE_NAME, "uu_data_cache_file_name_index", UUDataCacheMetaData.FILE_NAME_COLUMN), null);
+        }
+
+        @Nullable
+        private UUDataCacheMetaData getRow(@NonNull final String key)
+        {
+            String where = UUSql.buildSingleColumnWhere(UUDataCacheMetaData.NAME_COLUMN);
             String[] whereArgs = new String[] { key };
 
+            return querySingleObject(UUDataCacheMetaData.class, where, whereArgs, null);
+        }
+
+        @NonNull
+        private ArrayList<UUDataCacheMetaData> getRows(@NonNull final ArrayList<String> keys)
+        {
+            ArrayList<UUDataCacheMetaData> rows = new ArrayList<>();
+
+            for (int i = 0; i < keys.size(); i += UUSql.MAX_BOUND_STATEMENTS)
+            {
+                ArrayList<String> chunk = new ArrayList<>(keys.subList(i, Math.min(keys.size(), i + UUSql.MAX_BOUND_STATEMENTS)));
+                UUSqlArgs args = UUSql.formatWhereInClause(UUDataCacheMetaData.NAME_COLUMN, chunk);
+                rows.addAll(queryMultipleObjects(UUDataCacheMetaData.class, args.where, args.whereArgs, null, null));
+            }
+
+            return rows;
+        }
+
+        @NonNull
+        private HashMap<String, Object> getMetaData(@NonNull final String key)
+        {
             HashMap<String, Object> result = new HashMap<>();
 
-            UUDataCacheMetaData row = querySingleObject(UUDataCacheMetaData.class, where, whereArgs, null);
+            UUDataCacheMetaData row = getRow(key);
             if (row != null)
             {
                 result = row.explodeMetaData();
@@ -436,14 +2813,285 @@ public class UUDataCache implements UUDataCacheProtocol
             return result;
         }
 
-        private void setMetaData(@NonNull final String key, @NonNull HashMap<String, Object> metaData)
+        @NonNull
+        private synchronized UUDataCacheMetaData setMetaData(@NonNull final String key, @NonNull HashMap<String, Object> metaData)
+        {
+            UUDataCacheMetaData md = getRow(key);
+            if (md == null)
+            {
+                md = new UUDataCacheMetaData();
+                md.name = key;
+                md.timestamp = System.currentTimeMillis();
+            }
+
+            md.setMetaDataFromHashMap(metaData);
+            md.setTypedFieldsFromHashMap(metaData);
+
+            updateObject(UUDataCacheMetaData.class, md);
+            return md;
+        }
+
+        /**
+         * Writes the meta data, size and access time for an entry in one update
+         */
+        @NonNull
+        private synchronized UUDataCacheMetaData setEntry(@NonNull final String key, @NonNull HashMap<String, Object> metaData, final long size, final long timestamp, @NonNull final String fileName, @Nullable final String encoding)
         {
-            UUDataCacheMetaData md = new UUDataCacheMetaData();
-            md.name = key;
-            md.timestamp = System.currentTimeMillis();
+            UUDataCacheMetaData md = getRow(key);
+            if (md == null)
+            {
+                md = new UUDataCacheMetaData();
+                md.name = key;
+            }
+
             md.setMetaDataFromHashMap(metaData);
+            md.setTypedFieldsFromHashMap(metaData);
+            md.timestamp = timestamp;
+            md.size = size;
+            md.lastAccess = timestamp;
+            md.fileName = fileName;
+            md.encoding = encoding;
 
             updateObject(UUDataCacheMetaData.class, md);
+            return md;
+        }
+
+        private void removeMetaData(@NonNull final String key)
+        {
+            delete(UUDataCacheMetaData.TABLE_NAME, UUSql.buildSingleColumnWhere(UUDataCacheMetaData.NAME_COLUMN), new String[] { key });
+        }
+
+        private synchronized void removeMetaData(@NonNull final ArrayList<String> keys)
+        {
+            UUSQLiteDatabase db = null;
+
+            try
+            {
+                db = getReadWriteDatabase();
+
+                db.beginTransaction();
+
+                for (int i = 0; i < keys.size(); i += UUSql.MAX_BOUND_STATEMENTS)
+                {
+                    ArrayList<String> chunk = new ArrayList<>(keys.subList(i, Math.min(keys.size(), i + UUSql.MAX_BOUND_STATEMENTS)));
+                    UUSqlArgs args = UUSql.formatWhereInClause(UUDataCacheMetaData.NAME_COLUMN, chunk);
+                    delete(UUDataCacheMetaData.TABLE_NAME, args.where, args.whereArgs, false);
+                }
+
+                db.setTransactionSuccessful();
+            }
+            catch (Exception ex)
+            {
+                logException("removeMetaData", ex);
+            }
+            finally
+            {
+                safeEndTransaction(db);
+            }
+        }
+
+        /**
+         * Lists all keys whose data is expired.  Entries with an explicit expiration use it,
+         * all others expire a fixed interval after they were written.
+         */
+        @NonNull
+        private ArrayList<String> listExpiredKeys(final long now, final long expirationLength)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE (%s > 0 AND %s < ?) OR (%s = 0 AND %s > 0 AND %s < ?)",
+                UUDataCacheMetaData.NAME_COLUMN,
+                UUDataCacheMetaData.TABLE_NAME,
+                UUDataCacheMetaData.EXPIRES_AT_COLUMN,
+                UUDataCacheMetaData.EXPIRES_AT_COLUMN,
+                UUDataCacheMetaData.EXPIRES_AT_COLUMN,
+                UUDataCacheMetaData.TIMESTAMP_COLUMN,
+                UUDataCacheMetaData.TIMESTAMP_COLUMN);
+
+            String[] args = new String[] { String.valueOf(now), String.valueOf(now - expirationLength) };
+            return listSingleStringColumn(sql, args);
+        }
+
+        /**
+         * Lists the keys derived from a key.  The name is the primary key, so this is a range
+         * scan of its index.
+         */
+        @NonNull
+        private ArrayList<String> listDerivedKeys(@NonNull final String key)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s >= ? AND %s < ?",
+                UUDataCacheMetaData.NAME_COLUMN,
+                UUDataCacheMetaData.TABLE_NAME,
+                UUDataCacheMetaData.NAME_COLUMN,
+                UUDataCacheMetaData.NAME_COLUMN);
+
+            String[] args = new String[] { key + DERIVED_KEY_SEPARATOR, key + DERIVED_KEY_RANGE_END };
+            return listSingleStringColumn(sql, args);
+        }
+
+        /**
+         * Lists expired keys that are kept for revalidation.  A stale entry is only kept while
+         * it has been read within the expiration interval, so abandoned ones are still purged.
+         */
+        @NonNull
+        private ArrayList<String> listStaleKeys(final long now, final long expirationLength)
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s WHERE %s IS NOT NULL AND %s IS NOT NULL AND %s > ?",
+                UUDataCacheMetaData.NAME_COLUMN,
+                UUDataCacheMetaData.TABLE_NAME,
+                UUDataCacheMetaData.VALIDATOR_COLUMN,
+                UUDataCacheMetaData.FILE_NAME_COLUMN,
+                UUDataCacheMetaData.LAST_ACCESS_COLUMN);
+
+            String[] args = new String[] { String.valueOf(now - expirationLength) };
+            return listSingleStringColumn(sql, args);
+        }
+
+        /**
+         * Reads the typed columns of every row into the index.  The meta data blob is
+         * not read or parsed.
+         */
+        private synchronized void loadIndex(@NonNull final HashMap<String, IndexEntry> index)
+        {
+            String sql = String.format(Locale.US, "SELECT %s, %s, %s, %s, %s, %s, %s, %s, %s FROM %s",
+                UUDataCacheMetaData.NAME_COLUMN,
+                UUDataCacheMetaData.TIMESTAMP_COLUMN,
+                UUDataCacheMetaData.SIZE_COLUMN,
+                UUDataCacheMetaData.MIME_TYPE_COLUMN,
+                UUDataCacheMetaData.LAST_ACCESS_COLUMN,
+                UUDataCacheMetaData.EXPIRES_AT_COLUMN,
+                UUDataCacheMetaData.FILE_NAME_COLUMN,
+                UUDataCacheMetaData.ENCODING_COLUMN,
+                UUDataCacheMetaData.VALIDATOR_COLUMN,
+                UUDataCacheMetaData.TABLE_NAME);
+
+            Cursor c = null;
+
+            try
+            {
+                UUSQLiteDatabase db = getReadOnlyDatabase();
+
+                logSql(sql);
+                c = db.rawQuery(sql, null);
+
+                while (c.moveToNext())
+                {
+                    IndexEntry entry = new IndexEntry();
+                    entry.timestamp = c.getLong(1);
+                    entry.size = c.getLong(2);
+                    entry.mimeType = c.getString(3);
+                    entry.lastAccess = c.getLong(4);
+                    entry.expiresAt = c.getLong(5);
+                    entry.fileName = c.getString(6);
+                    entry.encoding = c.getString(7);
+                    entry.validator = c.getString(8);
+                    index.put(c.getString(0), entry);
+                }
+            }
+            catch (Exception ex)
+            {
+                logException("loadIndex", ex);
+            }
+            finally
+            {
+                UUCloseable.safeClose(c);
+            }
+        }
+
+        private void updateLastAccess(@NonNull final HashMap<String, Long> accessTimes)
+        {
+            String sql = String.format(Locale.US, "UPDATE %s SET %s = ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.LAST_ACCESS_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
+
+            ArrayList<Pair<String, Object[]>> lines = new ArrayList<>();
+            for (String key : accessTimes.keySet())
+            {
+                lines.add(new Pair<>(sql, new Object[] { accessTimes.get(key), key }));
+            }
+
+            execSqlLinesWithArgs(lines);
+        }
+
+        /**
+         * Sums the size of every file on disk, counting a shared payload once no matter how
+         * many rows refer to it.
+         */
+        private long totalSize()
+        {
+            String sql = String.format(Locale.US, "SELECT SUM(%s) FROM (SELECT MAX(%s) AS %s FROM %s GROUP BY COALESCE(%s, %s))",
+                UUDataCacheMetaData.SIZE_COLUMN,
+                UUDataCacheMetaData.SIZE_COLUMN,
+                UUDataCacheMetaData.SIZE_COLUMN,
+                UUDataCacheMetaData.TABLE_NAME,
+                UUDataCacheMetaData.FILE_NAME_COLUMN,
+                UUDataCacheMetaData.NAME_COLUMN);
+
+            return querySingleLongCell(sql, null, 0);
+        }
+
+        private long countFileReferences(@NonNull final String fileName)
+        {
+            String sql = String.format(Locale.US, "SELECT COUNT(*) FROM %s WHERE %s",
+                UUDataCacheMetaData.TABLE_NAME, UUSql.buildSingleColumnWhere(UUDataCacheMetaData.FILE_NAME_COLUMN));
+
+            return querySingleLongCell(sql, new String[] { fileName }, 0);
+        }
+
+        @NonNull
+        private ArrayList<UUDataCacheMetaData> listLeastRecentlyAccessed(final int limit)
+        {
+            String orderBy = UUSql.formatSortByClause(UUDataCacheMetaData.LAST_ACCESS_COLUMN, true);
+            return queryMultipleObjects(UUDataCacheMetaData.class, null, null, orderBy, String.valueOf(limit));
+        }
+
+        @NonNull
+        private ArrayList<String> listAllKeys()
+        {
+            String sql = String.format(Locale.US, "SELECT %s FROM %s", UUDataCacheMetaData.NAME_COLUMN, UUDataCacheMetaData.TABLE_NAME);
+            return listSingleStringColumn(sql, null);
+        }
+
+        private void updateFileNames(@NonNull final HashMap<String, String> fileNames)
+        {
+            String sql = String.format(Locale.US, "UPDATE %s SET %s = ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.FILE_NAME_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
+
+            ArrayList<Pair<String, Object[]>> lines = new ArrayList<>();
+            for (String key : fileNames.keySet())
+            {
+                lines.add(new Pair<>(sql, new Object[] { fileNames.get(key), key }));
+            }
+
+            execSqlLinesWithArgs(lines);
+        }
+
+        /**
+         * Rows created before sizes were tracked have no size recorded. This fills them in
+         * once from the files on disk.
+         */
+        @NonNull
+        private HashMap<String, Long> backfillSizes(@NonNull final File folder)
+        {
+            HashMap<String, Long> sizes = new HashMap<>();
+
+            String where = String.format(Locale.US, "%s IS NULL", UUDataCacheMetaData.SIZE_COLUMN);
+            ArrayList<UUDataCacheMetaData> rows = queryMultipleObjects(UUDataCacheMetaData.class, where, null, null, null);
+            if (rows.isEmpty())
+            {
+                return sizes;
+            }
+
+            String sql = String.format(Locale.US, "UPDATE %s SET %s = ?, %s = ? WHERE %s = ?",
+                UUDataCacheMetaData.TABLE_NAME, UUDataCacheMetaData.SIZE_COLUMN, UUDataCacheMetaData.LAST_ACCESS_COLUMN, UUDataCacheMetaData.NAME_COLUMN);
+
+            ArrayList<Pair<String, Object[]>> lines = new ArrayList<>();
+            for (UUDataCacheMetaData row : rows)
+            {
+                File file = new File(folder, legacyFileName(row.name));
+                lines.add(new Pair<>(sql, new Object[] { file.length(), row.timestamp, row.name }));
+                sizes.put(row.name, file.length());
+            }
+
+            execSqlLinesWithArgs(lines);
+            return sizes;
         }
 
         private void clearAllMetaData()
@@ -521,7 +3169,7 @@ public class UUDataCache implements UUDataCacheProtocol
         }*/
     }
 
-    @UUSqlDatabase(name = "UUDataCacheDb", models = { UUDataCacheMetaData.class })
+    @UUSqlDatabase(name = "UUDataCacheDb", version = 7, models = { UUDataCacheMetaData.class })
     private static class UUDataCacheDbSchema implements UUDatabaseDefinition
     {
 
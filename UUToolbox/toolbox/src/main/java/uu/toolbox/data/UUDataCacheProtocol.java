@@ -3,6 +3,9 @@ package uu.toolbox.data;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -31,6 +34,38 @@ public interface UUDataCacheProtocol
      */
     void setData(@NonNull byte[] data, @NonNull final String key);
 
+    /**
+     * Opens a stream to read data from the cache without loading it into memory
+     *
+     * @param key lookup key
+     * @return an input stream that the caller must close, or null if the object does not exist.
+     */
+    @Nullable
+    InputStream openInputStream(@NonNull final String key);
+
+    /**
+     * Maps data from the cache into memory as a read only buffer.  The buffer is backed by
+     * the file, so large objects are paged in on demand rather than copied onto the heap.
+     * Objects the cache stored compressed cannot be mapped; use openInputStream for those.
+     *
+     * @param key lookup key
+     * @return a read only buffer, or null if the object does not exist or is stored compressed.
+     */
+    @Nullable
+    MappedByteBuffer mapData(@NonNull final String key);
+
+    /**
+     * Opens a stream to write data into the cache.  Data is written to a temporary file and
+     * only replaces the existing object for this key when the stream is closed, so readers
+     * never see a partially written object.
+     *
+     * @param key lookup key
+     * @return an output stream that the caller must close to commit the data, or null if
+     * the stream could not be opened.
+     */
+    @Nullable
+    OutputStream openOutputStream(@NonNull final String key);
+
     /**
      * Gets meta data associated with an object
      *
@@ -0,0 +1,124 @@
+package uu.toolbox.network;
+
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds mutable bitmaps that are no longer cached so a later decode can draw into one of them
+ * through BitmapFactory.Options.inBitmap instead of allocating a new one.  Bitmaps are bucketed
+ * by allocation size, and a request is served from the smallest bucket that is big enough.
+ */
+class UUBitmapPool
+{
+    // A bitmap more than this many times larger than the request wastes more than it saves
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+    private long size = 0;
+
+    /**
+     * Adds a bitmap to the pool.  Immutable and recycled bitmaps can not be reused and are
+     * ignored.
+     */
+    synchronized void put(@NonNull final Bitmap bitmap)
+    {
+        if (!bitmap.isMutable() || bitmap.isRecycled())
+        {
+            return;
+        }
+
+        int byteCount = bitmap.getAllocationByteCount();
+
+        ArrayDeque<Bitmap> bucket = buckets.get(byteCount);
+        if (bucket == null)
+        {
+            bucket = new ArrayDeque<>();
+            buckets.put(byteCount, bucket);
+        }
+
+        bucket.addLast(bitmap);
+        size += byteCount;
+    }
+
+    /**
+     * Takes a bitmap out of the pool that can hold an image of the given size
+     *
+     * @param byteCount bytes needed by the decoded image
+     * @param config pixel format of the decoded image
+     * @return a bitmap to decode into, or null if none fits
+     */
+    @Nullable
+    synchronized Bitmap get(final int byteCount, @NonNull final Bitmap.Config config)
+    {
+        long maxByteCount = (long)byteCount * MAX_SIZE_MULTIPLE;
+
+        for (Map.Entry<Integer, ArrayDeque<Bitmap>> entry : buckets.tailMap(byteCount, true).entrySet())
+        {
+            if (entry.getKey() > maxByteCount)
+            {
+                break;
+            }
+
+            ArrayDeque<Bitmap> bucket = entry.getValue();
+            Iterator<Bitmap> it = bucket.descendingIterator();
+            while (it.hasNext())
+            {
+                Bitmap bitmap = it.next();
+                if (bitmap.getConfig() == config)
+                {
+                    it.remove();
+                    removed(entry.getKey(), bucket);
+                    return bitmap;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Drops the largest bitmaps until the pool holds no more than the given number of bytes.
+     * Dropped bitmaps are left to the garbage collector rather than recycled, since the caller
+     * that last displayed one may still be drawing it.
+     */
+    synchronized void trimToSize(final long maxSize)
+    {
+        while (size > maxSize && !buckets.isEmpty())
+        {
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.lastEntry();
+            ArrayDeque<Bitmap> bucket = entry.getValue();
+            bucket.pollFirst();
+            removed(entry.getKey(), bucket);
+        }
+    }
+
+    synchronized void clear()
+    {
+        buckets.clear();
+        size = 0;
+    }
+
+    /**
+     * @return bytes held by the pool
+     */
+    synchronized long size()
+    {
+        return size;
+    }
+
+    private void removed(final int byteCount, @NonNull final ArrayDeque<Bitmap> bucket)
+    {
+        size -= byteCount;
+
+        if (bucket.isEmpty())
+        {
+            buckets.remove(byteCount);
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package uu.toolbox.network;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Orders pending downloads by priority and hands them out subject to an overall limit and a
+ * per host limit.  Within a priority the most recently requested key goes first, so the rows
+ * a user just scrolled to win over the ones they scrolled past.  Each host keeps its own
+ * queue, and only hosts with a free slot are considered when picking the next download, so a
+ * saturated host with a long queue costs nothing to skip.  Queueing, re-prioritizing,
+ * cancelling and picking a key are all O(log n).
+ */
+class UUDownloadScheduler
+{
+    private static class Request implements Comparable<Request>
+    {
+        final String key;
+        final Host host;
+        UURemoteData.Priority priority;
+        long sequence;
+
+        Request(@NonNull final String key, @NonNull final Host host)
+        {
+            this.key = key;
+            this.host = host;
+        }
+
+        @Override
+        public int compareTo(@NonNull final Request other)
+        {
+            int result = priority.compareTo(other.priority);
+            if (result == 0)
+            {
+                result = Long.compare(other.sequence, sequence);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * The queue and active count for one host.  Hosts order by their best queued request.
+     */
+    private static class Host implements Comparable<Host>
+    {
+        final String name;
+        final TreeSet<Request> queue = new TreeSet<>();
+        int active;
+
+        // In readyHosts.  Only hosts known to be there are removed, since a lookup compares
+        // queue heads and an empty queue has none.
+        boolean ready;
+
+        Host(@NonNull final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public int compareTo(@NonNull final Host other)
+        {
+            // Sequences are unique, so two different heads never compare equal
+            return queue.first().compareTo(other.queue.first());
+        }
+    }
+
+    private final HashMap<String, Host> hosts = new HashMap<>();
+
+    // Hosts that have queued requests and a free slot.  A host is taken out before its queue
+    // or active count changes and put back after, since both decide its place here.
+    private final TreeSet<Host> readyHosts = new TreeSet<>();
+
+    private final HashMap<String, Request> queuedRequests = new HashMap<>();
+    private final HashMap<String, Host> activeRequests = new HashMap<>();
+    private long nextSequence = 0;
+    private int maxActive;
+    private int maxActivePerHost;
+
+    UUDownloadScheduler(final int maxActive, final int maxActivePerHost)
+    {
+        this.maxActive = maxActive;
+        this.maxActivePerHost = maxActivePerHost;
+    }
+
+    synchronized int getMaxActive()
+    {
+        return maxActive;
+    }
+
+    synchronized void setMaxActive(final int max)
+    {
+        maxActive = max;
+    }
+
+    synchronized int getMaxActivePerHost()
+    {
+        return maxActivePerHost;
+    }
+
+    synchronized void setMaxActivePerHost(final int max)
+    {
+        maxActivePerHost = max;
+
+        readyHosts.clear();
+        for (Host host : hosts.values())
+        {
+            host.ready = false;
+            addIfReady(host);
+        }
+    }
+
+    /**
+     * Queues a key, or moves an already queued key to the front of its priority.  A queued
+     * key is never lowered in priority by a later request.
+     *
+     * @return false if the key is already downloading
+     */
+    synchronized boolean enqueue(@NonNull final String key, @NonNull final UURemoteData.Priority priority)
+    {
+        if (activeRequests.containsKey(key))
+        {
+            return false;
+        }
+
+        Request request = queuedRequests.get(key);
+        Host host;
+
+        if (request != null)
+        {
+            host = request.host;
+            removeReady(host);
+            host.queue.remove(request);
+
+            if (priority.compareTo(request.priority) < 0)
+            {
+                request.priority = priority;
+            }
+        }
+        else
+        {
+            host = hostFor(key);
+            removeReady(host);
+
+            request = new Request(key, host);
+            request.priority = priority;
+            queuedRequests.put(key, request);
+        }
+
+        request.sequence = nextSequence++;
+        host.queue.add(request);
+        addIfReady(host);
+        return true;
+    }
+
+    /**
+     * Removes a key that has not started downloading yet
+     *
+     * @return true if the key was queued
+     */
+    synchronized boolean cancel(@NonNull final String key)
+    {
+        Request request = queuedRequests.remove(key);
+        if (request != null)
+        {
+            Host host = request.host;
+            removeReady(host);
+            host.queue.remove(request);
+            addIfReady(host);
+            removeIfIdle(host);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes the highest priority key whose host has a free slot and marks it active
+     *
+     * @return a key to download, or null if nothing can start right now
+     */
+    @Nullable
+    synchronized String dequeue()
+    {
+        if (activeRequests.size() >= maxActive)
+        {
+            return null;
+        }
+
+        Host host = readyHosts.pollFirst();
+        if (host == null)
+        {
+            return null;
+        }
+
+        host.ready = false;
+
+        Request request = host.queue.pollFirst();
+        queuedRequests.remove(request.key);
+        activeRequests.put(request.key, host);
+        host.active++;
+
+        addIfReady(host);
+        return request.key;
+    }
+
+    /**
+     * Frees the slot held by a finished download
+     */
+    synchronized void complete(@NonNull final String key)
+    {
+        Host host = activeRequests.remove(key);
+        if (host != null)
+        {
+            removeReady(host);
+            host.active--;
+            addIfReady(host);
+            removeIfIdle(host);
+        }
+    }
+
+    synchronized boolean isActive(@NonNull final String key)
+    {
+        return activeRequests.containsKey(key);
+    }
+
+    synchronized boolean isQueued(@NonNull final String key)
+    {
+        return queuedRequests.containsKey(key);
+    }
+
+    synchronized int queuedCount()
+    {
+        return queuedRequests.size();
+    }
+
+    /**
+     * Empties the queue.  Active downloads are not affected.
+     *
+     * @return the keys that were queued
+     */
+    @NonNull
+    synchronized ArrayList<String> clear()
+    {
+        ArrayList<String> keys = new ArrayList<>(queuedRequests.keySet());
+        queuedRequests.clear();
+        readyHosts.clear();
+
+        ArrayList<Host> all = new ArrayList<>(hosts.values());
+        for (Host host : all)
+        {
+            host.ready = false;
+            host.queue.clear();
+            removeIfIdle(host);
+        }
+
+        return keys;
+    }
+
+    private void addIfReady(@NonNull final Host host)
+    {
+        if (!host.queue.isEmpty() && host.active < maxActivePerHost)
+        {
+            readyHosts.add(host);
+            host.ready = true;
+        }
+    }
+
+    private void removeReady(@NonNull final Host host)
+    {
+        if (host.ready)
+        {
+            readyHosts.remove(host);
+            host.ready = false;
+        }
+    }
+
+    private void removeIfIdle(@NonNull final Host host)
+    {
+        if (host.queue.isEmpty() && host.active <= 0)
+        {
+            hosts.remove(host.name);
+        }
+    }
+
+    @NonNull
+    private Host hostFor(@NonNull final String key)
+    {
+        String name = hostOf(key);
+
+        Host host = hosts.get(name);
+        if (host == null)
+        {
+            host = new Host(name);
+            hosts.put(name, host);
+        }
+
+        return host;
+    }
+
+    @NonNull
+    private static String hostOf(@NonNull final String key)
+    {
+        try
+        {
+            String host = new URL(key).getHost();
+            if (host != null)
+            {
+                return host.toLowerCase(Locale.US);
+            }
+        }
+        catch (Exception ex)
+        {
+            // Keys are validated before they are queued, fall through
+        }
+
+        return "";
+    }
+}
@@ -18,6 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLSocketFactory;
@@ -129,6 +130,19 @@ public final class UUHttp
         return task;
     }
 
+    /**
+     * Executes a request on a specific executor.  The plain execute method runs tasks one
+     * at a time on the shared serial executor.
+     */
+    @NonNull
+    @SuppressWarnings("UnusedReturnValue")
+    public static UUHttpTask execute(@NonNull final UUHttpRequest request, @NonNull final Executor executor, @NonNull final UUHttpDelegate delegate)
+    {
+        UUHttpTask task = new UUHttpTask(delegate);
+        task.executeOnExecutor(executor, request);
+        return task;
+    }
+
     @NonNull
     @SuppressWarnings("ConstantConditions")
     protected static UUHttpResponse executeRequest(@NonNull final UUHttpRequest request)
@@ -227,11 +241,20 @@ public final class UUHttp
             UULog.debug(UUHttp.class, "executeRequest", "Response Content-Type:" + response.getContentType());
             UULog.debug(UUHttp.class, "executeRequest", "Response Content-Encoding: " + response.getContentEncoding());
 
-            long start = System.currentTimeMillis();
-            byte[] responseBuffer = readResponse(urlConnection);
-            response.setRawResponse(responseBuffer);
-            response.parseResponse();
+            // Headers first so a stream handler can use them
             response.setResponseHeaders(safeGetResponseHeaderes(urlConnection));
+
+            UUHttpStreamHandler streamHandler = request.getStreamHandler();
+            if (streamHandler != null && response.isSuccessResponse())
+            {
+                streamResponse(urlConnection, response, streamHandler);
+            }
+            else
+            {
+                byte[] responseBuffer = readResponse(urlConnection);
+                response.setRawResponse(responseBuffer);
+                response.parseResponse();
+            }
         }
         catch (Exception ex)
         {
@@ -436,6 +459,27 @@ public final class UUHttp
         }
     }
 
+    protected static void streamResponse(final HttpURLConnection connection, final UUHttpResponse response, final UUHttpStreamHandler handler) throws IOException
+    {
+        InputStream in = connection.getInputStream();
+
+        try
+        {
+            handler.handleResponseStream(response, in);
+        }
+        finally
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException ex)
+            {
+                UULog.debug(UUHttp.class, "streamResponse.close", ex);
+            }
+        }
+    }
+
     protected static byte[] readResponse(final HttpURLConnection connection) throws IOException
     {
         InputStream in;
@@ -41,6 +41,7 @@ public class UUHttpRequest
     //private boolean processMimeTypes = true;
     private boolean gzipCompression = false;
     private UUHttpResponseParser responseParser = new UUJsonResponseParser();
+    private UUHttpStreamHandler streamHandler;
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Construction
@@ -234,6 +235,20 @@ public class UUHttpRequest
         this.responseParser = responseParser;
     }
 
+    public UUHttpStreamHandler getStreamHandler()
+    {
+        return streamHandler;
+    }
+
+    /**
+     * Sets a handler that consumes successful response bodies as a stream.  When set, the raw
+     * and parsed response of a successful request are left null.
+     */
+    public void setStreamHandler(UUHttpStreamHandler streamHandler)
+    {
+        this.streamHandler = streamHandler;
+    }
+
     @NonNull
     public String buildFullUrlString()
     {
@@ -144,9 +144,23 @@ public class UUHttpResponse
     {
         String value = null;
 
-        if (_responseHeaders != null && _responseHeaders.containsKey(key))
+        if (_responseHeaders != null)
         {
             List<String> values = _responseHeaders.get(key);
+
+            if (values == null)
+            {
+                // Header names are case insensitive, but not every map of them is
+                for (Map.Entry<String, List<String>> entry : _responseHeaders.entrySet())
+                {
+                    if (entry.getKey() != null && entry.getKey().equalsIgnoreCase(key))
+                    {
+                        values = entry.getValue();
+                        break;
+                    }
+                }
+            }
+
             if (values != null && values.size() > 0)
             {
                 value = values.get(0);
@@ -0,0 +1,21 @@
+package uu.toolbox.network;
+
+import android.support.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * UUHttpStreamHandler
+ *
+ * Useful Utilities - Consumes the body of a successful response as it arrives, instead of
+ * having UUHttp collect it into a byte array first.  Error response bodies are still read
+ * into the response as usual.
+ *
+ * The handler runs on the request thread and is called at most once per request, and only
+ * for a 2xx response.
+ */
+public interface UUHttpStreamHandler
+{
+    void handleResponseStream(@NonNull final UUHttpResponse response, @NonNull final InputStream stream) throws IOException;
+}
@@ -2,6 +2,7 @@ package uu.toolbox.network;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Locale;
 
 /**
  * UUHttpUtils
@@ -35,4 +36,104 @@ public final class UUHttpUtils
 
         return endpoint;
     }
-}
\ No newline at end of file
+
+    /**
+     * Reads the freshness lifetime from a Cache-Control header.  no-cache and no-store both
+     * mean the response must be revalidated before every use, so they read as zero.
+     *
+     * @param cacheControl the header value, may be null
+     * @return lifetime in seconds, or -1 if the header does not give one
+     */
+    protected static long parseMaxAge(final String cacheControl)
+    {
+        if (cacheControl == null)
+        {
+            return -1;
+        }
+
+        long maxAge = -1;
+
+        for (String directive : cacheControl.split(","))
+        {
+            String d = directive.trim().toLowerCase(Locale.US);
+
+            if (d.equals("no-cache") || d.equals("no-store"))
+            {
+                return 0;
+            }
+
+            if (d.startsWith("max-age="))
+            {
+                try
+                {
+                    String val = d.substring("max-age=".length()).replace("\"", "");
+                    maxAge = Math.max(0, Long.parseLong(val));
+                }
+                catch (NumberFormatException ex)
+                {
+                    // Ignore a malformed lifetime and fall back to the default
+                }
+            }
+        }
+
+        return maxAge;
+    }
+
+    /**
+     * Reads the first byte position from a Content-Range header, such as "bytes 100-999/1000"
+     *
+     * @param contentRange the header value, may be null
+     * @return the first byte position, or -1 if the header is missing or malformed
+     */
+    protected static long parseContentRangeStart(final String contentRange)
+    {
+        if (contentRange == null)
+        {
+            return -1;
+        }
+
+        String range = contentRange.trim().toLowerCase(Locale.US);
+        if (!range.startsWith("bytes "))
+        {
+            return -1;
+        }
+
+        int dash = range.indexOf('-');
+        if (dash < 0)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(range.substring("bytes ".length(), dash).trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads a Content-Length header
+     *
+     * @param contentLength the header value, may be null
+     * @return the length, or -1 if the header is missing or malformed
+     */
+    protected static long parseContentLength(final String contentLength)
+    {
+        if (contentLength == null)
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Long.parseLong(contentLength.trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package uu.toolbox.network;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.support.annotation.NonNull;
+
+import uu.toolbox.data.UUDataCache;
+import uu.toolbox.logging.UULog;
+
+/**
+ * Trims the in-memory caches when the system is short on memory.  Once registered it listens
+ * for trim callbacks and shrinks the UURemoteImage memory cache, its bitmap pool and the
+ * UUDataCache memory tiers, harder the more severe the trim level is.  Cache limits are not
+ * changed, only what the caches currently hold.
+ */
+public class UUMemoryBudget implements ComponentCallbacks2
+{
+    /**
+     * A snapshot of what the in-memory caches hold, in bytes
+     */
+    public static class Usage
+    {
+        public long imageCacheSize;
+        public long imageCacheLimit;
+        public long bitmapPoolSize;
+        public long dataCacheSize;
+        public long dataCacheLimit;
+
+        public long getTotalSize()
+        {
+            return imageCacheSize + bitmapPoolSize + dataCacheSize;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Singleton Interface
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    private static UUMemoryBudget theSharedInstance;
+
+    /**
+     * Creates the shared instance and registers it for trim callbacks on the application
+     * context.  Call after the caches it manages have been set up.
+     */
+    public static void init(final Context context)
+    {
+        Context appContext = context.getApplicationContext();
+
+        if (theSharedInstance != null)
+        {
+            appContext.unregisterComponentCallbacks(theSharedInstance);
+        }
+
+        theSharedInstance = new UUMemoryBudget();
+        appContext.registerComponentCallbacks(theSharedInstance);
+    }
+
+    public static synchronized UUMemoryBudget sharedInstance()
+    {
+        return theSharedInstance;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Public Methods
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Trims every managed cache to the same fraction of its limit
+     *
+     * @param keepFraction fraction to keep, from 0 to 1
+     */
+    public void trim(final float keepFraction)
+    {
+        UURemoteImage remoteImage = UURemoteImage.sharedInstance();
+        if (remoteImage != null)
+        {
+            remoteImage.trimMemory(keepFraction);
+        }
+
+        UUDataCache dataCache = UUDataCache.sharedInstance();
+        if (dataCache != null)
+        {
+            dataCache.trimMemory(keepFraction);
+        }
+    }
+
+    /**
+     * Gets what the managed caches hold right now
+     */
+    @NonNull
+    public Usage getUsage()
+    {
+        Usage usage = new Usage();
+
+        UURemoteImage remoteImage = UURemoteImage.sharedInstance();
+        if (remoteImage != null)
+        {
+            usage.imageCacheSize = remoteImage.getMemoryCacheSize();
+            usage.imageCacheLimit = remoteImage.getMemoryCacheLimit();
+            usage.bitmapPoolSize = remoteImage.getBitmapPoolSize();
+        }
+
+        UUDataCache dataCache = UUDataCache.sharedInstance();
+        if (dataCache != null)
+        {
+            usage.dataCacheSize = dataCache.getMemoryCacheSize();
+            usage.dataCacheLimit = dataCache.getMemoryCacheLimit();
+        }
+
+        return usage;
+    }
+
+    /**
+     * Maps a trim level to the fraction of each cache to keep
+     *
+     * @param level one of the ComponentCallbacks2 TRIM_MEMORY constants
+     * @return a fraction from 0 to 1
+     */
+    public static float keepFractionForLevel(final int level)
+    {
+        if (level >= TRIM_MEMORY_MODERATE)
+        {
+            // Next in line to be killed, hold nothing that can be rebuilt
+            return 0.0f;
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND)
+        {
+            return 0.25f;
+        }
+        else if (level >= TRIM_MEMORY_UI_HIDDEN)
+        {
+            // Nothing is on screen, so decoded images are no longer needed right away
+            return 0.5f;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            return 0.25f;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_LOW)
+        {
+            return 0.5f;
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+        {
+            return 0.75f;
+        }
+
+        return 1.0f;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // ComponentCallbacks2
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void onTrimMemory(final int level)
+    {
+        try
+        {
+            float keep = keepFractionForLevel(level);
+            if (keep < 1.0f)
+            {
+                trim(keep);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "onTrimMemory", ex);
+        }
+    }
+
+    @Override
+    public void onLowMemory()
+    {
+        try
+        {
+            trim(0.0f);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "onLowMemory", ex);
+        }
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull final Configuration newConfig)
+    {
+        // Not used
+    }
+}
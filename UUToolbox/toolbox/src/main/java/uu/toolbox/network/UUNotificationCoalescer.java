@@ -0,0 +1,158 @@
+package uu.toolbox.network;
+
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import uu.toolbox.logging.UULog;
+
+/**
+ * Collects keys for a notification over a short window and then broadcasts them all in one
+ * intent, so that a burst of completions causes one UI refresh instead of hundreds.  A key
+ * posted several times within a window is only sent once.  Keys can be posted with a changed
+ * flag, and the keys posted as changed are sent in a second list.
+ */
+class UUNotificationCoalescer
+{
+    private final LocalBroadcastManager broadcastManager;
+    private final String keysExtra;
+    private final String changedKeysExtra;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // Keys per action, each with its changed flag or null if it was posted without one
+    private final LinkedHashMap<String, LinkedHashMap<String, Boolean>> pendingKeys = new LinkedHashMap<>();
+    private final Runnable flushRunnable = this::flush;
+    private long window = 0;
+    private boolean flushScheduled = false;
+
+    /**
+     * @param keysExtra name of the string array list extra that carries the keys
+     * @param changedKeysExtra name of the string array list extra that carries the keys posted
+     *                         as changed.  Only sent for batches where some key had a flag.
+     */
+    UUNotificationCoalescer(@NonNull final LocalBroadcastManager broadcastManager, @NonNull final String keysExtra, @NonNull final String changedKeysExtra)
+    {
+        this.broadcastManager = broadcastManager;
+        this.keysExtra = keysExtra;
+        this.changedKeysExtra = changedKeysExtra;
+    }
+
+    synchronized long getWindow()
+    {
+        return window;
+    }
+
+    /**
+     * Sets how long keys are collected before they are sent.  Zero or less turns coalescing
+     * off, and anything already collected is sent right away.
+     */
+    void setWindow(final long window)
+    {
+        boolean flushNow;
+
+        synchronized (this)
+        {
+            this.window = window;
+            flushNow = (window <= 0 && !pendingKeys.isEmpty());
+        }
+
+        if (flushNow)
+        {
+            handler.removeCallbacks(flushRunnable);
+            handler.post(flushRunnable);
+        }
+    }
+
+    /**
+     * Adds a key to the next batch for an action.  A key posted again within the window
+     * counts as changed if any of its posts did.
+     *
+     * @param changed whether the key's data changed, or null if that does not apply
+     * @return false if coalescing is off, in which case the caller sends its own notification
+     */
+    synchronized boolean post(@NonNull final String action, @NonNull final String key, @Nullable final Boolean changed)
+    {
+        if (window <= 0)
+        {
+            return false;
+        }
+
+        LinkedHashMap<String, Boolean> keys = pendingKeys.get(action);
+        if (keys == null)
+        {
+            keys = new LinkedHashMap<>();
+            pendingKeys.put(action, keys);
+        }
+
+        Boolean previous = keys.get(key);
+        if (previous == null || Boolean.TRUE.equals(changed))
+        {
+            keys.put(key, changed);
+        }
+
+        if (!flushScheduled)
+        {
+            flushScheduled = true;
+            handler.postDelayed(flushRunnable, window);
+        }
+
+        return true;
+    }
+
+    private void flush()
+    {
+        LinkedHashMap<String, LinkedHashMap<String, Boolean>> batches;
+
+        synchronized (this)
+        {
+            batches = new LinkedHashMap<>(pendingKeys);
+            pendingKeys.clear();
+            flushScheduled = false;
+        }
+
+        for (Map.Entry<String, LinkedHashMap<String, Boolean>> batch : batches.entrySet())
+        {
+            try
+            {
+                LinkedHashMap<String, Boolean> keys = batch.getValue();
+
+                Intent intent = new Intent(batch.getKey());
+                intent.putStringArrayListExtra(keysExtra, new ArrayList<>(keys.keySet()));
+
+                ArrayList<String> changedKeys = new ArrayList<>();
+                boolean flagged = false;
+
+                for (Map.Entry<String, Boolean> key : keys.entrySet())
+                {
+                    if (key.getValue() != null)
+                    {
+                        flagged = true;
+
+                        if (key.getValue())
+                        {
+                            changedKeys.add(key.getKey());
+                        }
+                    }
+                }
+
+                if (flagged)
+                {
+                    intent.putStringArrayListExtra(changedKeysExtra, changedKeys);
+                }
+
+                broadcastManager.sendBroadcast(intent);
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "flush", ex);
+            }
+        }
+    }
+}
@@ -2,21 +2,28 @@ package uu.toolbox.network;
 
 import android.content.Context;
 import android.content.Intent;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import uu.toolbox.core.UUDate;
 import uu.toolbox.core.UUNonNullObjectDelegate;
+import uu.toolbox.core.UUObjectDelegate;
 import uu.toolbox.core.UUString;
+import uu.toolbox.core.UUThread;
+import uu.toolbox.core.UUWorkerThread;
 import uu.toolbox.data.UUDataCache;
 import uu.toolbox.logging.UULog;
 
@@ -24,26 +31,103 @@ public class UURemoteData implements UURemoteDataProtocol
 {
     public static class MetaData extends UUDataCache.MetaData
     {
-        public static final String MimeType = "MimeType";
         public static final String DownloadTimestamp = "DownloadTimestamp";
+        public static final String ETag = "ETag";
+        public static final String LastModified = "LastModified";
     }
 
     public class Notifications
     {
         public static final String DataDownloaded = "UUDataDownloadedNotification";
         public static final String DataDownloadFailed = "UUDataDownloadFailedNotification";
+
+        // Sent instead of the two above when notifications are coalesced, with RemotePaths
+        public static final String DataDownloadedBatch = "UUDataDownloadedBatchNotification";
+        public static final String DataDownloadFailedBatch = "UUDataDownloadFailedBatchNotification";
     }
 
     public class NotificationKeys
     {
         public static final String RemotePath = "UUDataRemotePathKey";
+
+        // ArrayList<String>, every key in a batch notification
+        public static final String RemotePaths = "UUDataRemotePathsKey";
+
+        // ArrayList<String>, the keys in a DataDownloadedBatch whose data changed.  The other
+        // keys only confirmed that the cached data is current, as DataChanged false does.
+        public static final String ChangedRemotePaths = "UUDataChangedRemotePathsKey";
+
         public static final String Error = "UURemoteDataErrorKey";
+
+        // Boolean, false when a download only confirmed that the cached data is current
+        public static final String DataChanged = "UURemoteDataChangedKey";
+    }
+
+    /**
+     * Download priorities, highest first.  Visible is for content on screen now, Prefetch for
+     * content that is about to be, and Background for everything else.
+     */
+    public enum Priority
+    {
+        Visible,
+        Prefetch,
+        Background
+    }
+
+    public static final int DEFAULT_MAX_DOWNLOAD_REQUESTS = 8;
+    public static final int DEFAULT_MAX_DOWNLOAD_REQUESTS_PER_HOST = 4;
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 8192;
+
+    // Bodies at least this large are written so that an interrupted download can resume
+    private static final long RESUMABLE_DOWNLOAD_THRESHOLD = 1024 * 1024;
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    // Number of keys whose download failures are remembered
+    private static final int MAX_FAILURE_RECORDS = 256;
+
+    // First retry delay after a failure, doubled on each further failure
+    private static final long NETWORK_FAILURE_BACKOFF = 5 * UUDate.MILLIS_IN_ONE_SECOND;
+    private static final long SERVER_FAILURE_BACKOFF = 30 * UUDate.MILLIS_IN_ONE_SECOND;
+    private static final long CLIENT_FAILURE_BACKOFF = UUDate.MILLIS_IN_ONE_MINUTE;
+
+    /**
+     * Why a download failed.  Client covers 4xx responses, which are unlikely to succeed on
+     * a retry, Server covers 5xx responses and throttling, and Network covers requests that
+     * got no response at all.
+     */
+    public enum FailureCause
+    {
+        Client,
+        Server,
+        Network
+    }
+
+    public static class DownloadFailure
+    {
+        public FailureCause cause;
+        public int httpResponseCode;
+        public int failureCount;
+        public long lastFailureTime;
+        public long retryTime;
     }
 
     public static class DataResponse
     {
         public byte[] data;
         public String mimeType;
+        public int httpResponseCode;
+        public Exception exception;
+
+        // True when the body was written straight to the cache and data is null
+        public boolean streamed;
+
+        // Cache headers, set for both full and 304 responses
+        public boolean notModified;
+        public String eTag;
+        public String lastModified;
+        public long expiresAt;
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -73,22 +157,46 @@ public class UURemoteData implements UURemoteDataProtocol
     }
 
     private LocalBroadcastManager broadcastManager;
-    private final HashMap<String, Boolean> activeDownloads = new HashMap<>();
-    private final Deque<String> queuedDownloadRequests = new ArrayDeque<>();
-    private final HashMap<String, Long> lastFailureTimes = new HashMap<>();
+    private UUNotificationCoalescer notificationCoalescer;
+    private final UUDownloadScheduler scheduler = new UUDownloadScheduler(DEFAULT_MAX_DOWNLOAD_REQUESTS, DEFAULT_MAX_DOWNLOAD_REQUESTS_PER_HOST);
+    private final LinkedHashMap<String, DownloadFailure> downloadFailures = new LinkedHashMap<String, DownloadFailure>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DownloadFailure> eldest)
+        {
+            return (size() > MAX_FAILURE_RECORDS);
+        }
+    };
 
+    private final HashMap<String, Priority> parkedRequests = new HashMap<>();
+    private boolean serveStaleData = false;
+    private final UUWorkerThread retryThread = new UUWorkerThread("UURemoteData");
+    private final HashMap<String, ArrayList<UUObjectDelegate<byte[]>>> pendingDelegates = new HashMap<>();
 
-    private int maxDownloadRequests = 5;
     private long failedDownloadIgnoreTime = 15 * UUDate.MILLIS_IN_ONE_MINUTE;
 
     public UURemoteData(@NonNull final Context context)
     {
         broadcastManager = LocalBroadcastManager.getInstance(context);
+        notificationCoalescer = new UUNotificationCoalescer(broadcastManager, NotificationKeys.RemotePaths, NotificationKeys.ChangedRemotePaths);
     }
 
     @Nullable
     @Override
     public byte[] getData(@NonNull final String key)
+    {
+        return getData(key, Priority.Visible);
+    }
+
+    /**
+     * Fetches data from the cache, queueing a download at the given priority if it is missing
+     *
+     * @param key lookup key
+     * @param priority the download priority
+     * @return data from the cache, or null if the object does not exist yet
+     */
+    @Nullable
+    public byte[] getData(@NonNull final String key, @NonNull final Priority priority)
     {
         try
         {
@@ -97,13 +205,21 @@ public class UURemoteData implements UURemoteDataProtocol
                 return null;
             }
 
-            byte[] data = UUDataCache.sharedInstance().getData(key);
+            UUDataCache cache = UUDataCache.sharedInstance();
+            boolean stale = (serveStaleData && cache.isDataStale(key));
+
+            byte[] data = (stale ? cache.getStaleData(key) : cache.getData(key));
             if (data != null)
             {
+                if (stale)
+                {
+                    queueDownloadRequest(key, revalidationPriority(priority));
+                }
+
                 return data;
             }
 
-            queueDownloadRequest(key);
+            queueDownloadRequest(key, priority);
         }
         catch (Exception ex)
         {
@@ -114,6 +230,103 @@ public class UURemoteData implements UURemoteDataProtocol
         return null;
     }
 
+    @Override
+    public void getData(@NonNull final String key, @NonNull final UUObjectDelegate<byte[]> delegate)
+    {
+        getData(key, Priority.Visible, delegate);
+    }
+
+    /**
+     * Fetches data from the cache, downloading it at the given priority if needed.  Requests
+     * for a key that is already queued raise it to the higher of the two priorities.
+     *
+     * @param key lookup key
+     * @param priority the download priority
+     * @param delegate receives the data, or null if it could not be fetched
+     */
+    public void getData(@NonNull final String key, @NonNull final Priority priority, @NonNull final UUObjectDelegate<byte[]> delegate)
+    {
+        if (!checkUrl(key))
+        {
+            UUObjectDelegate.safeInvoke(delegate, null);
+            return;
+        }
+
+        UUDataCache.sharedInstance().getDataAsync(key, data ->
+        {
+            if (data != null)
+            {
+                UUObjectDelegate.safeInvoke(delegate, data);
+                return;
+            }
+
+            // Already on the cache's I/O thread, so reading the stale copy here is fine
+            byte[] stale = (serveStaleData ? UUDataCache.sharedInstance().getStaleData(key) : null);
+            if (stale != null)
+            {
+                UUObjectDelegate.safeInvoke(delegate, stale);
+                queueDownloadRequest(key, revalidationPriority(priority));
+                return;
+            }
+
+            boolean firstWaiter;
+
+            synchronized (pendingDelegates)
+            {
+                ArrayList<UUObjectDelegate<byte[]>> delegates = pendingDelegates.get(key);
+                firstWaiter = (delegates == null);
+
+                if (firstWaiter)
+                {
+                    delegates = new ArrayList<>();
+                    pendingDelegates.put(key, delegates);
+                }
+
+                delegates.add(delegate);
+            }
+
+            // A download may have finished between the cache miss and now
+            byte[] downloaded = (firstWaiter ? UUDataCache.sharedInstance().getData(key) : null);
+            if (downloaded != null)
+            {
+                completePendingDelegates(key, downloaded);
+            }
+            else
+            {
+                // Later waiters still re-queue so that their priority is applied
+                queueDownloadRequest(key, priority);
+            }
+        });
+    }
+
+    /**
+     * Gets whether getData returns expired data that is waiting to be revalidated.  When on,
+     * callers get the stale data right away and a DataDownloaded notification once the
+     * revalidation finishes.  Its DataChanged extra is false if the data turned out to be
+     * current.  Only data that came with an ETag or Last-Modified header can be served stale.
+     *
+     * @return true if stale data is served
+     */
+    public boolean getServeStaleData()
+    {
+        return serveStaleData;
+    }
+
+    public void setServeStaleData(final boolean serveStaleData)
+    {
+        this.serveStaleData = serveStaleData;
+    }
+
+    /**
+     * The caller already has something to show, so a revalidation should not take a slot
+     * from content that is missing entirely
+     */
+    @NonNull
+    private static Priority revalidationPriority(@NonNull final Priority priority)
+    {
+        return (priority == Priority.Visible ? Priority.Prefetch : priority);
+    }
+
     protected boolean checkUrl(@NonNull final String key)
     {
         try
@@ -140,7 +353,27 @@ public class UURemoteData implements UURemoteDataProtocol
     {
         UUHttpRequest request = UUHttpRequest.get(key, null);
         request.setResponseParser(null);
-        UUHttp.execute(request, response ->
+        request.setStreamHandler((response, stream) -> streamToCache(key, response, stream));
+
+        // Run on the thread pool so downloads actually overlap up to the scheduler's limits.
+        // The conditional and range headers read the cache's files and database, so they are
+        // added on the pool thread just before the request goes out, never on the caller's.
+        Executor executor = task -> AsyncTask.THREAD_POOL_EXECUTOR.execute(() ->
+        {
+            try
+            {
+                addConditionalHeaders(request, key);
+                addRangeHeaders(request, key);
+            }
+            catch (Exception ex)
+            {
+                UULog.error(getClass(), "downloadData", ex);
+            }
+
+            task.run();
+        });
+
+        UUHttp.execute(request, executor, response ->
         {
             DataResponse dataResponse = new DataResponse();
 
@@ -149,10 +382,28 @@ public class UURemoteData implements UURemoteDataProtocol
                 Exception ex = response.getException();
                 byte[] rawResponse = response.getRawResponse();
 
-                if (ex == null && rawResponse != null)
+                dataResponse.httpResponseCode = response.getHttpResponseCode();
+                dataResponse.exception = ex;
+
+                if (response.getHttpResponseCode() == HTTP_RANGE_NOT_SATISFIABLE)
                 {
-                    dataResponse.data = response.getRawResponse();
+                    // The partial data no longer lines up with the resource, start over next time
+                    UUDataCache.sharedInstance().removePartialData(key);
+                }
+
+                if (ex == null && response.getHttpResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+                {
+                    dataResponse.notModified = true;
+                    readCacheHeaders(response, dataResponse);
+                }
+                // Error pages come back with a body too, so only cache successful responses.
+                // Those are streamed into the cache, leaving no raw response.
+                else if (ex == null && response.isSuccessResponse())
+                {
+                    dataResponse.data = rawResponse;
+                    dataResponse.streamed = (rawResponse == null);
                     dataResponse.mimeType = response.getContentType();
+                    readCacheHeaders(response, dataResponse);
                 }
                 else
                 {
@@ -171,119 +422,353 @@ public class UURemoteData implements UURemoteDataProtocol
         });
     }
 
-    private synchronized void queueDownloadRequest(@NonNull final String key)
+    /**
+     * Copies a response body into the cache through one small buffer.  The data only replaces
+     * what is cached once the whole body has arrived.
+     */
+    private void streamToCache(@NonNull final String key, @NonNull final UUHttpResponse response, @NonNull final InputStream stream) throws IOException
     {
-        logQueue("Before Push");
-        queuedDownloadRequests.remove(key);
-        queuedDownloadRequests.push(key);
-        logQueue("After Push");
+        UUDataCache.CacheOutputStream os = openDownloadStream(key, response);
 
-        processDownloadRequests();
+        boolean complete = false;
+
+        try
+        {
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_SIZE];
+            int bytesRead;
+
+            while ((bytesRead = stream.read(buffer, 0, buffer.length)) != -1)
+            {
+                os.write(buffer, 0, bytesRead);
+            }
+
+            complete = true;
+        }
+        finally
+        {
+            if (complete)
+            {
+                os.close();
+            }
+            else
+            {
+                os.abort();
+            }
+        }
     }
 
-    private synchronized void logQueue(@NonNull final String message)
+    /**
+     * Picks where a response body goes.  A 206 continues the partial data it was asked for,
+     * a large response with a strong validator becomes new partial data, and anything else
+     * goes through the normal cache stream.
+     */
+    @NonNull
+    private UUDataCache.CacheOutputStream openDownloadStream(@NonNull final String key, @NonNull final UUHttpResponse response) throws IOException
     {
-        UULog.debug(getClass(), "logQueue", message + ", There are " + queuedDownloadRequests.size() + " items in the download queue.");
+        UUDataCache cache = UUDataCache.sharedInstance();
+        UUDataCache.CacheOutputStream os;
 
-        Iterator<String> iterator = queuedDownloadRequests.descendingIterator();
-        int i = 0;
+        if (response.getHttpResponseCode() == HttpURLConnection.HTTP_PARTIAL)
+        {
+            long start = UUHttpUtils.parseContentRangeStart(response.getResponseHeader("Content-Range"));
+            String validator = cache.getPartialDataValidator(key);
 
-        while (iterator.hasNext())
+            os = ((start >= 0 && validator != null) ? cache.openPartialOutputStream(key, validator, start) : null);
+            if (os == null)
+            {
+                cache.removePartialData(key);
+                throw new IOException("Unable to resume partial data for " + key);
+            }
+
+            UULog.debug(getClass(), "openDownloadStream", "Resuming " + key + " at byte " + start);
+            return os;
+        }
+
+        String validator = resumableValidator(response);
+        if (validator != null)
+        {
+            os = cache.openPartialOutputStream(key, validator, 0);
+        }
+        else
+        {
+            // A full response replaces anything downloaded before
+            cache.removePartialData(key);
+            os = cache.openOutputStream(key, response.getContentType());
+        }
+
+        if (os == null)
         {
-            String next = iterator.next();
-            UULog.debug(getClass(), "logQueue", message + ", " + i + ": " + next);
+            throw new IOException("Unable to open cache stream for " + key);
         }
+
+        return os;
     }
 
-    private synchronized int numberOfActiveRequests()
+    /**
+     * If-Range needs a strong validator, so weak ETags are passed over for Last-Modified
+     *
+     * @return a validator to resume the response with, or null if it should not be resumable
+     */
+    @Nullable
+    private static String resumableValidator(@NonNull final UUHttpResponse response)
     {
-        return activeDownloads.size();
+        long length = UUHttpUtils.parseContentLength(response.getResponseHeader("Content-Length"));
+        if (length < RESUMABLE_DOWNLOAD_THRESHOLD)
+        {
+            return null;
+        }
+
+        String eTag = response.getResponseHeader("ETag");
+        if (eTag != null && !eTag.startsWith("W/"))
+        {
+            return eTag;
+        }
+
+        return response.getResponseHeader("Last-Modified");
     }
 
-    private synchronized void addActiveRequest(@NonNull final String key)
+    /**
+     * Asks for only the rest of an interrupted download.  If-Range makes the server send the
+     * whole body instead if the resource changed since.
+     */
+    private void addRangeHeaders(@NonNull final UUHttpRequest request, @NonNull final String key)
     {
-        activeDownloads.put(key, Boolean.TRUE);
+        UUDataCache cache = UUDataCache.sharedInstance();
+
+        String validator = cache.getPartialDataValidator(key);
+        long offset = cache.getPartialDataLength(key);
+
+        if (validator != null && offset > 0)
+        {
+            request.addHeaderField("Range", "bytes=" + offset + "-");
+            request.addHeaderField("If-Range", validator);
+
+            // Ranges count bytes as stored, so keep the connection from gzipping them
+            request.addHeaderField("Accept-Encoding", "identity");
+        }
     }
 
-    private synchronized void removeActiveRequest(@NonNull final String key)
+    /**
+     * Turns a refetch of stale data into a conditional GET, so an unchanged resource comes
+     * back as an empty 304 instead of the whole body
+     */
+    private void addConditionalHeaders(@NonNull final UUHttpRequest request, @NonNull final String key)
     {
-        activeDownloads.remove(key);
-        processDownloadRequests();
+        if (!UUDataCache.sharedInstance().isDataStale(key))
+        {
+            return;
+        }
+
+        HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
+
+        Object eTag = md.get(MetaData.ETag);
+        if (eTag instanceof String)
+        {
+            request.addHeaderField("If-None-Match", eTag);
+        }
+
+        Object lastModified = md.get(MetaData.LastModified);
+        if (lastModified instanceof String)
+        {
+            request.addHeaderField("If-Modified-Since", lastModified);
+        }
     }
 
-    private int getMaxDownloadRequests()
+    private static void readCacheHeaders(@NonNull final UUHttpResponse response, @NonNull final DataResponse dataResponse)
     {
-        return maxDownloadRequests;
+        dataResponse.eTag = response.getResponseHeader("ETag");
+        dataResponse.lastModified = response.getResponseHeader("Last-Modified");
+
+        long maxAge = UUHttpUtils.parseMaxAge(response.getResponseHeader("Cache-Control"));
+        if (maxAge >= 0)
+        {
+            dataResponse.expiresAt = System.currentTimeMillis() + (maxAge * UUDate.MILLIS_IN_ONE_SECOND);
+        }
     }
 
-    public void setMaxDownloadRequests(int maxDownloadRequests)
+    private void queueDownloadRequest(@NonNull final String key, @NonNull final Priority priority)
     {
-        this.maxDownloadRequests = maxDownloadRequests;
+        DownloadFailure failure = getDownloadFailure(key);
+        if (failure != null)
+        {
+            long wait = failure.retryTime - System.currentTimeMillis();
+            if (wait > 0)
+            {
+                if (failure.cause == FailureCause.Client)
+                {
+                    // Not worth keeping callers waiting on a request the server rejected
+                    UULog.debug(getClass(), "queueDownloadRequest", "key: " + key + ", rejected with " + failure.httpResponseCode + ", not downloading for " + wait + " millis");
+                    completePendingDelegates(key, null);
+                }
+                else
+                {
+                    parkDownloadRequest(key, priority, wait);
+                }
+
+                return;
+            }
+        }
+
+        scheduler.enqueue(key, priority);
+        processDownloadRequests();
     }
 
-    @Nullable
-    private synchronized String dequeueRequest()
+    /**
+     * Holds a key in backoff aside until its retry time, instead of leaving it in the queue
+     */
+    private void parkDownloadRequest(@NonNull final String key, @NonNull final Priority priority, final long delay)
     {
-        logQueue("Before Pop");
+        boolean schedule;
 
-        String value = null;
+        synchronized (parkedRequests)
+        {
+            Priority parked = parkedRequests.get(key);
+            schedule = (parked == null);
 
-        if (queuedDownloadRequests.size() > 0)
+            if (parked == null || priority.compareTo(parked) < 0)
+            {
+                parkedRequests.put(key, priority);
+            }
+        }
+
+        if (schedule)
         {
-            value = queuedDownloadRequests.pop();
+            UULog.debug(getClass(), "parkDownloadRequest", "key: " + key + ", retrying in " + delay + " millis");
+            retryThread.postDelayed(() -> unparkDownloadRequest(key), delay);
         }
+    }
+
+    private void unparkDownloadRequest(@NonNull final String key)
+    {
+        Priority priority;
 
-        logQueue("After Pop");
-        return value;
+        synchronized (parkedRequests)
+        {
+            priority = parkedRequests.remove(key);
+        }
+
+        if (priority != null)
+        {
+            queueDownloadRequest(key, priority);
+        }
     }
 
-    private void processDownloadRequests()
+    private boolean removeParkedRequest(@NonNull final String key)
+    {
+        synchronized (parkedRequests)
+        {
+            return (parkedRequests.remove(key) != null);
+        }
+    }
+
+    private void removeActiveRequest(@NonNull final String key)
+    {
+        scheduler.complete(key);
+        processDownloadRequests();
+    }
+
+    /**
+     * Gets the maximum number of downloads that run at once across all hosts
+     *
+     * @return a count
+     */
+    public int getMaxDownloadRequests()
+    {
+        return scheduler.getMaxActive();
+    }
+
+    public void setMaxDownloadRequests(int maxDownloadRequests)
+    {
+        scheduler.setMaxActive(maxDownloadRequests);
+        processDownloadRequests();
+    }
+
+    /**
+     * Gets the maximum number of downloads that run at once against a single host
+     *
+     * @return a count
+     */
+    public int getMaxDownloadRequestsPerHost()
     {
-        ArrayList<String> skipped = new ArrayList<>();
+        return scheduler.getMaxActivePerHost();
+    }
+
+    /**
+     * Sets the maximum number of downloads that run at once against a single host, so that a
+     * slow host cannot take every download slot.
+     *
+     * @param maxDownloadRequests a count
+     */
+    public void setMaxDownloadRequestsPerHost(int maxDownloadRequests)
+    {
+        scheduler.setMaxActivePerHost(maxDownloadRequests);
+        processDownloadRequests();
+    }
 
-        while (numberOfActiveRequests() < getMaxDownloadRequests())
+    /**
+     * Cancels a download that has not started yet, for example when the row that asked for
+     * it scrolls off screen.  Any callers waiting on it are dropped without being called.
+     * Downloads that are already running finish and are cached as usual.
+     *
+     * @param key lookup key
+     * @return true if a queued download was cancelled
+     */
+    public boolean cancelDownload(@NonNull final String key)
+    {
+        boolean cancelled = (scheduler.cancel(key) | removeParkedRequest(key));
+        if (cancelled)
         {
-            String key = dequeueRequest();
-            if (key == null)
+            synchronized (pendingDelegates)
             {
-                // No more queue'd requests
-                break;
+                pendingDelegates.remove(key);
             }
+        }
+
+        return cancelled;
+    }
 
-            Long lastFailure = lastFailureTime(key);
-            if (lastFailure != null)
+    /**
+     * Withdraws a single caller's interest in a key.  The download itself is only cancelled
+     * once no other caller is waiting on it.
+     *
+     * @param key lookup key
+     * @param delegate the delegate passed to getData
+     * @return true if the queued download was cancelled
+     */
+    public boolean cancelDownload(@NonNull final String key, @NonNull final UUObjectDelegate<byte[]> delegate)
+    {
+        synchronized (pendingDelegates)
+        {
+            ArrayList<UUObjectDelegate<byte[]>> delegates = pendingDelegates.get(key);
+            if (delegates != null)
             {
-                long timeSinceLastFailure = System.currentTimeMillis() - lastFailure;
-                if (timeSinceLastFailure < getFailedDownloadIgnoreTime())
+                delegates.remove(delegate);
+                if (!delegates.isEmpty())
                 {
-                    UULog.debug(getClass(), "processDownloadRequests", "key: " + key + ", last failure was " + timeSinceLastFailure + " millis ago, waiting to download.");
-                    skipped.add(key);
-                    continue;
+                    return false;
                 }
-            }
 
-            if (!isDownloadPending(key))
-            {
-                addActiveRequest(key);
-                downloadData(key, response -> handleDownloadResponse(response, key));
+                pendingDelegates.remove(key);
             }
         }
 
-        // Add skipped back in but don't trigger the processing loop
-        synchronized (queuedDownloadRequests)
-        {
-            queuedDownloadRequests.addAll(skipped);
+        return (scheduler.cancel(key) | removeParkedRequest(key));
+    }
 
+    private void processDownloadRequests()
+    {
+        String key;
+        while ((key = scheduler.dequeue()) != null)
+        {
+            final String downloadKey = key;
+            downloadData(downloadKey, response -> handleDownloadResponse(response, downloadKey));
         }
     }
 
     @Override
     public boolean isDownloadPending(@NonNull final String key)
     {
-        synchronized (activeDownloads)
-        {
-            return activeDownloads.containsKey(key);
-        }
+        return scheduler.isActive(key);
     }
 
     @NonNull
@@ -301,35 +786,58 @@ public class UURemoteData implements UURemoteDataProtocol
 
     private void handleDownloadResponse(@NonNull final DataResponse response, @NonNull final String key)
     {
+        byte[] rawResponse = null;
+        boolean downloaded = false;
+
         try
         {
-            byte[] rawResponse = response.data;
+            rawResponse = response.data;
 
-            if (rawResponse != null)
+            if (response.notModified)
+            {
+                saveCacheHeaders(key, response);
+                rawResponse = UUDataCache.sharedInstance().getData(key);
+            }
+
+            if (rawResponse != null && response.notModified)
+            {
+                clearDownloadFailure(key);
+                sendNotification(Notifications.DataDownloaded, Notifications.DataDownloadedBatch, key, false);
+            }
+            else if (rawResponse != null || response.streamed)
             {
-                UUDataCache.sharedInstance().setData(rawResponse, key);
                 //updateMetaDataFromResponse(response, key);
 
+                // Meta data goes first so the cache knows the mime type when deciding
+                // whether to compress the data
                 HashMap<String, Object> md = UUDataCache.sharedInstance().getMetaData(key);
                 md.put(MetaData.MimeType, response.mimeType);
                 md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
                 UUDataCache.sharedInstance().setMetaData(md, key);
 
-                Intent intent = new Intent(Notifications.DataDownloaded);
-                intent.putExtra(NotificationKeys.RemotePath, key);
+                // Streamed data is already in the cache
+                if (rawResponse != null)
+                {
+                    UUDataCache.sharedInstance().setData(rawResponse, key);
+                }
 
-                broadcastManager.sendBroadcast(intent);
+                saveCacheHeaders(key, response);
+                clearDownloadFailure(key);
+                downloaded = true;
+
+                sendNotification(Notifications.DataDownloaded, Notifications.DataDownloadedBatch, key, true);
             }
             else
             {
-                Intent intent = new Intent(Notifications.DataDownloadFailed);
-                intent.putExtra(NotificationKeys.RemotePath, key);
+                // A 304 for data trimmed in the meantime is not the server's fault.  The
+                // next request goes out unconditionally since nothing stale is left.
+                if (!response.notModified)
+                {
+                    markDownloadFailed(key, response);
+                }
 
                 // TODO: Put error info into intent
-
-                broadcastManager.sendBroadcast(intent);
-
-                markDownloadFailed(key);
+                sendNotification(Notifications.DataDownloadFailed, Notifications.DataDownloadFailedBatch, key, null);
             }
         }
         catch (Exception ex)
@@ -339,9 +847,138 @@ public class UURemoteData implements UURemoteDataProtocol
         finally
         {
             removeActiveRequest(key);
+            completePendingDelegates(key, rawResponse, downloaded);
         }
     }
 
+    /**
+     * Stores the validators and lifetime from a response.  This has to follow setData, which
+     * clears them since they describe the data being replaced.  A 304 without a lifetime
+     * gets a fresh default one, otherwise the entry would still be expired.
+     */
+    private void saveCacheHeaders(@NonNull final String key, @NonNull final DataResponse response)
+    {
+        UUDataCache cache = UUDataCache.sharedInstance();
+        HashMap<String, Object> md = cache.getMetaData(key);
+
+        // A 304 may leave out validators that have not changed
+        if (!response.notModified || response.eTag != null)
+        {
+            putOrRemove(md, MetaData.ETag, response.eTag);
+        }
+
+        if (!response.notModified || response.lastModified != null)
+        {
+            putOrRemove(md, MetaData.LastModified, response.lastModified);
+        }
+
+        Object validator = md.get(MetaData.ETag);
+        if (validator == null)
+        {
+            validator = md.get(MetaData.LastModified);
+        }
+
+        putOrRemove(md, MetaData.Validator, validator);
+
+        long expiresAt = response.expiresAt;
+        if (expiresAt <= 0 && response.notModified)
+        {
+            expiresAt = System.currentTimeMillis() + cache.getDataExpirationInterval();
+        }
+
+        putOrRemove(md, MetaData.ExpiresAt, (expiresAt > 0 ? expiresAt : null));
+        cache.setMetaData(md, key);
+    }
+
+    private static void putOrRemove(@NonNull final HashMap<String, Object> md, @NonNull final String key, @Nullable final Object value)
+    {
+        if (value != null)
+        {
+            md.put(key, value);
+        }
+        else
+        {
+            md.remove(key);
+        }
+    }
+
+    /**
+     * Hands the result of a download to every caller waiting on it
+     */
+    private void completePendingDelegates(@NonNull final String key, @Nullable final byte[] data)
+    {
+        completePendingDelegates(key, data, false);
+    }
+
+    /**
+     * @param loadFromCache read the data from the cache if none is given, which is only done
+     *                      when someone is actually waiting for it
+     */
+    private void completePendingDelegates(@NonNull final String key, @Nullable byte[] data, final boolean loadFromCache)
+    {
+        ArrayList<UUObjectDelegate<byte[]>> delegates;
+
+        synchronized (pendingDelegates)
+        {
+            delegates = pendingDelegates.remove(key);
+        }
+
+        if (delegates != null && !delegates.isEmpty())
+        {
+            if (data == null && loadFromCache)
+            {
+                data = UUDataCache.sharedInstance().getData(key);
+            }
+
+            for (UUObjectDelegate<byte[]> delegate : delegates)
+            {
+                UUObjectDelegate.safeInvoke(delegate, data);
+            }
+        }
+    }
+
+    /**
+     * Gets how long finished keys are collected before one batch notification is sent for
+     * all of them.  About 16 millis batches per frame.
+     *
+     * @return window in milliseconds, zero when every key is notified on its own
+     */
+    public long getNotificationCoalescingWindow()
+    {
+        return notificationCoalescer.getWindow();
+    }
+
+    /**
+     * Sets how long finished keys are collected into a batch.  While on, DataDownloadedBatch
+     * and DataDownloadFailedBatch are sent with the list of keys in RemotePaths instead of
+     * DataDownloaded and DataDownloadFailed for every key.  DataDownloadedBatch also lists
+     * the keys whose data changed in ChangedRemotePaths.
+     *
+     * @param window window in milliseconds, zero or less to turn batching off
+     */
+    public void setNotificationCoalescingWindow(final long window)
+    {
+        notificationCoalescer.setWindow(window);
+    }
+
+    private void sendNotification(@NonNull final String action, @NonNull final String batchAction, @NonNull final String key, @Nullable final Boolean dataChanged)
+    {
+        if (notificationCoalescer.post(batchAction, key, dataChanged))
+        {
+            return;
+        }
+
+        Intent intent = new Intent(action);
+        intent.putExtra(NotificationKeys.RemotePath, key);
+
+        if (dataChanged != null)
+        {
+            intent.putExtra(NotificationKeys.DataChanged, dataChanged.booleanValue());
+        }
+
+        broadcastManager.sendBroadcast(intent);
+    }
+
     public void notifyDataDownloaded(@NonNull final String key)
     {
         try
@@ -351,10 +988,8 @@ public class UURemoteData implements UURemoteDataProtocol
             md.put(MetaData.DownloadTimestamp, System.currentTimeMillis());
             UUDataCache.sharedInstance().setMetaData(md, key);
 
-            Intent intent = new Intent(Notifications.DataDownloaded);
-            intent.putExtra(NotificationKeys.RemotePath, key);
-
-            broadcastManager.sendBroadcast(intent);
+            // New data is ready for the key, which a batch has to list as changed
+            sendNotification(Notifications.DataDownloaded, Notifications.DataDownloadedBatch, key, true);
         }
         catch (Exception ex)
         {
@@ -362,17 +997,107 @@ public class UURemoteData implements UURemoteDataProtocol
         }
     }
 
-    private synchronized void markDownloadFailed(@NonNull final String key)
+    private void markDownloadFailed(@NonNull final String key, @NonNull final DataResponse response)
+    {
+        long now = System.currentTimeMillis();
+
+        synchronized (downloadFailures)
+        {
+            DownloadFailure failure = downloadFailures.get(key);
+            if (failure == null)
+            {
+                failure = new DownloadFailure();
+                downloadFailures.put(key, failure);
+            }
+
+            failure.cause = classifyFailure(response);
+            failure.httpResponseCode = response.httpResponseCode;
+            failure.failureCount++;
+            failure.lastFailureTime = now;
+            failure.retryTime = now + backoffDelay(failure);
+
+            UULog.debug(getClass(), "markDownloadFailed", "key: " + key + ", cause: " + failure.cause + ", failures: " + failure.failureCount + ", retry in " + (failure.retryTime - now) + " millis");
+        }
+    }
+
+    @NonNull
+    private static FailureCause classifyFailure(@NonNull final DataResponse response)
     {
-        lastFailureTimes.put(key, System.currentTimeMillis());
+        int code = response.httpResponseCode;
+
+        if (code <= 0)
+        {
+            return FailureCause.Network;
+        }
+
+        // Timeouts, throttling and ranges that no longer fit are worth retrying like a
+        // server error
+        if (code >= 400 && code < 500 && code != 408 && code != 429 && code != HTTP_RANGE_NOT_SATISFIABLE)
+        {
+            return FailureCause.Client;
+        }
+
+        return FailureCause.Server;
     }
 
+    /**
+     * Doubles the base delay for the failure cause with each consecutive failure, up to the
+     * failed download ignore time.  The result is jittered between half and all of that so
+     * clients that failed together don't all retry together.
+     */
+    private long backoffDelay(@NonNull final DownloadFailure failure)
+    {
+        long base;
+        switch (failure.cause)
+        {
+            case Client:
+                base = CLIENT_FAILURE_BACKOFF;
+                break;
+
+            case Server:
+                base = SERVER_FAILURE_BACKOFF;
+                break;
+
+            default:
+                base = NETWORK_FAILURE_BACKOFF;
+                break;
+        }
+
+        int shift = Math.min(failure.failureCount - 1, 20);
+        long delay = Math.min(base << shift, getFailedDownloadIgnoreTime());
+        long half = delay / 2;
+        return half + (long)(Math.random() * (delay - half));
+    }
+
+    private void clearDownloadFailure(@NonNull final String key)
+    {
+        synchronized (downloadFailures)
+        {
+            downloadFailures.remove(key);
+        }
+    }
+
+    /**
+     * Gets the most recent failure recorded for a key.  Only a bounded number of keys are
+     * remembered, least recently failed or looked up first out.
+     *
+     * @param key lookup key
+     * @return a failure, or null if none is recorded
+     */
     @Nullable
-    private synchronized Long lastFailureTime(@NonNull final String key)
+    public DownloadFailure getDownloadFailure(@NonNull final String key)
     {
-        return lastFailureTimes.get(key);
+        synchronized (downloadFailures)
+        {
+            return downloadFailures.get(key);
+        }
     }
 
+    /**
+     * Gets the longest a failed key waits before it is downloaded again
+     *
+     * @return interval in milliseconds
+     */
     public long getFailedDownloadIgnoreTime()
     {
         return failedDownloadIgnoreTime;
@@ -383,13 +1108,30 @@ public class UURemoteData implements UURemoteDataProtocol
         this.failedDownloadIgnoreTime = failedDownloadIgnoreTime;
     }
 
-    public synchronized void clearLastFailureTimes()
+    public void clearLastFailureTimes()
     {
-        lastFailureTimes.clear();
+        synchronized (downloadFailures)
+        {
+            downloadFailures.clear();
+        }
     }
 
-    public synchronized void clearPendingQueue()
+    public void clearPendingQueue()
     {
-        queuedDownloadRequests.clear();
+        final ArrayList<String> cleared = scheduler.clear();
+
+        synchronized (parkedRequests)
+        {
+            cleared.addAll(parkedRequests.keySet());
+            parkedRequests.clear();
+        }
+
+        UUThread.runOnBackgroundThread(() ->
+        {
+            for (String key : cleared)
+            {
+                completePendingDelegates(key, null);
+            }
+        });
     }
 }
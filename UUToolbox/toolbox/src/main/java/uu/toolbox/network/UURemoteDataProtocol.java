@@ -5,6 +5,8 @@ import android.support.annotation.Nullable;
 
 import java.util.HashMap;
 
+import uu.toolbox.core.UUObjectDelegate;
+
 /**
  *
  * UURemoteDataProtocol defines a lightweight interface for remote fetching of data from either
@@ -22,6 +24,16 @@ public interface UURemoteDataProtocol
     @Nullable
     byte[] getData(@NonNull final String key);
 
+    /**
+     * Fetches data from the cache, downloading it if needed.  Concurrent requests for the
+     * same key share a single download, and each caller's delegate is invoked directly when
+     * it completes.  The delegate is invoked on a background thread.
+     *
+     * @param key lookup key
+     * @param delegate receives the data, or null if it could not be fetched
+     */
+    void getData(@NonNull final String key, @NonNull final UUObjectDelegate<byte[]> delegate);
+
     /**
      * Checks to see if a download is currently pending
      *
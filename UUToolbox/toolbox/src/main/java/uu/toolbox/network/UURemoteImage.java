@@ -8,12 +8,20 @@ import android.support.annotation.Nullable;
 import android.util.LruCache;
 import android.util.Size;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import uu.toolbox.core.UUThread;
+import uu.toolbox.core.UUObjectDelegate;
+import uu.toolbox.core.UUWorkerThread;
 import uu.toolbox.data.UUDataCache;
+import uu.toolbox.logging.UULog;
 
 public class UURemoteImage
 {
@@ -21,6 +29,24 @@ public class UURemoteImage
     {
         public static final String ImageWidth = "ImageWidth";
         public static final String ImageHeight = "ImageHeight";
+
+        // Long, on a thumbnail entry the data timestamp of the image it was made from
+        public static final String SourceTimestamp = "SourceTimestamp";
+    }
+
+    /**
+     * How an image is sized to a target width and height
+     */
+    public enum ScaleMode
+    {
+        // Scaled to cover the target, so the smaller side matches and the larger side overflows
+        Fill,
+
+        // Scaled to fit inside the target, so the larger side matches
+        Fit,
+
+        // Scaled to cover the target, then the overflow is cropped off evenly on both sides
+        Crop
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
@@ -44,10 +70,32 @@ public class UURemoteImage
         return theSharedInstance;
     }
 
+    // Decoding is memory hungry, so only a few run at once no matter how many are requested
+    private static final int DECODE_THREAD_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long DECODE_KEEP_ALIVE_SECONDS = 30;
+
+    public static final Bitmap.CompressFormat DEFAULT_THUMBNAIL_FORMAT = Bitmap.CompressFormat.WEBP;
+    public static final int DEFAULT_THUMBNAIL_QUALITY = 80;
+
+    // Denominator for the density ratio that scales a sampled image to its exact size
+    private static final int SCALE_DENSITY = 10000;
+
     ////////////////////////////////////////////////////////////////////////////////////////////////
     // Private Members
     ////////////////////////////////////////////////////////////////////////////////////////////////
     private MemoryCache memoryCache;
+    private final UUBitmapPool bitmapPool = new UUBitmapPool();
+    private boolean thumbnailsEnabled = true;
+    private Bitmap.CompressFormat thumbnailFormat = DEFAULT_THUMBNAIL_FORMAT;
+    private int thumbnailQuality = DEFAULT_THUMBNAIL_QUALITY;
+    private final int displayDensity;
+
+    // In flight decodes by photo key, so each image and size is only decoded once at a time
+    private final HashMap<String, DecodeRequest> pendingDecodes = new HashMap<>();
+    private final ThreadPoolExecutor decodeExecutor;
+
+    // Thumbnails are encoded and written here, after the image has been handed out
+    private final UUWorkerThread thumbnailThread = new UUWorkerThread("UURemoteImageThumbnail");
 
     public UURemoteImage(@NonNull final Context context)
     {
@@ -60,11 +108,134 @@ public class UURemoteImage
         int cacheSize = maxMemory / 8;
 
         memoryCache = new MemoryCache(cacheSize);
+        displayDensity = context.getResources().getDisplayMetrics().densityDpi;
+
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        decodeExecutor = new ThreadPoolExecutor(DECODE_THREAD_COUNT, DECODE_THREAD_COUNT, DECODE_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r ->
+            {
+                Thread t = new Thread(r, "UURemoteImageDecode-" + threadCount.incrementAndGet());
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            });
+        decodeExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void clearCache()
     {
         memoryCache.evictAll();
+        bitmapPool.clear();
+    }
+
+    /**
+     * Turns reuse of evicted bitmaps on or off.  When on, bitmaps evicted from the memory cache
+     * are kept in a pool and later decodes draw into them instead of allocating new ones.  The
+     * pool shares the memory cache budget, so the two together never hold more than the cache
+     * size.  Off by default.
+     *
+     * Only turn this on if a bitmap is no longer displayed once it leaves the memory cache,
+     * for example when the cache is sized to hold every image on screen.  A pooled bitmap that
+     * is still drawn somewhere will show whatever image is decoded into it next.
+     */
+    public void setBitmapReuseEnabled(final boolean enabled)
+    {
+        memoryCache.setPool(enabled ? bitmapPool : null);
+
+        if (!enabled)
+        {
+            bitmapPool.clear();
+        }
+    }
+
+    public boolean isBitmapReuseEnabled()
+    {
+        return memoryCache.getPool() != null;
+    }
+
+    /**
+     * Gets the maximum number of bytes held by decoded images and the bitmap pool together
+     *
+     * @return a byte count
+     */
+    public long getMemoryCacheLimit()
+    {
+        return memoryCache.maxSize() * 1024L;
+    }
+
+    /**
+     * Gets the number of bytes currently held by decoded images in memory
+     *
+     * @return a byte count
+     */
+    public long getMemoryCacheSize()
+    {
+        return memoryCache.size() * 1024L;
+    }
+
+    /**
+     * Gets the number of bytes currently held by bitmaps waiting to be reused
+     *
+     * @return a byte count
+     */
+    public long getBitmapPoolSize()
+    {
+        return bitmapPool.size();
+    }
+
+    /**
+     * Evicts the least recently used images until the memory cache holds no more than a
+     * fraction of its limit, and shrinks the bitmap pool by the same fraction.  The limit
+     * itself is left alone, so the cache fills up again as images are decoded.
+     *
+     * @param keepFraction fraction to keep, from 0 to 1
+     */
+    public void trimMemory(final float keepFraction)
+    {
+        float keep = Math.max(0, Math.min(1, keepFraction));
+
+        // Measured first, since evicted images land in the pool on their way out
+        long poolSize = bitmapPool.size();
+        memoryCache.trimToSize((int)(memoryCache.maxSize() * keep));
+        bitmapPool.trimToSize((long)(poolSize * keep));
+    }
+
+    public boolean isThumbnailCacheEnabled()
+    {
+        return thumbnailsEnabled;
+    }
+
+    /**
+     * Turns the disk tier of resized images on or off.  When on, an image decoded at a target
+     * size smaller than the original is also encoded and stored in UUDataCache, so it can be
+     * loaded again without decoding the original.  A thumbnail is only used while the original
+     * it was made from is still in the cache unchanged.  On by default.
+     */
+    public void setThumbnailCacheEnabled(final boolean enabled)
+    {
+        thumbnailsEnabled = enabled;
+    }
+
+    @NonNull
+    public Bitmap.CompressFormat getThumbnailFormat()
+    {
+        return thumbnailFormat;
+    }
+
+    public int getThumbnailQuality()
+    {
+        return thumbnailQuality;
+    }
+
+    /**
+     * Sets how thumbnails are encoded.  Takes effect for thumbnails written from now on.
+     *
+     * @param format image format
+     * @param quality compression quality from 0 to 100, ignored by lossless formats
+     */
+    public void setThumbnailFormat(@NonNull final Bitmap.CompressFormat format, final int quality)
+    {
+        thumbnailFormat = format;
+        thumbnailQuality = Math.max(0, Math.min(100, quality));
     }
 
     @Nullable
@@ -76,68 +247,742 @@ public class UURemoteImage
     @Nullable
     public Bitmap getImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, final boolean skipDownload)
     {
-        String photoKey = getPhotoKey(key, targetWidth, targetHeight);
+        return getImage(key, targetWidth, targetHeight, ScaleMode.Fill, null, skipDownload);
+    }
 
-        if (UUDataCache.sharedInstance().doesDataExist(key))
+    /**
+     * Fetches an image from memory, or starts loading it.  Callers find out the image is ready
+     * through the DataDownloaded notification.
+     *
+     * @param key lookup key
+     * @param targetWidth width to size the image to, or null for full size
+     * @param targetHeight height to size the image to, or null for full size
+     * @param scaleMode how the image is sized to the target.  Images are never scaled up.
+     * @param config pixel format to decode to, or null for ARGB_8888.  RGB_565 halves the memory
+     *               of opaque images such as JPEGs.
+     * @param skipDownload true to only decode images that are already on disk
+     * @return the image, or null if it is not in memory yet
+     */
+    @Nullable
+    public Bitmap getImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config, final boolean skipDownload)
+    {
+        String photoKey = getPhotoKey(key, targetWidth, targetHeight, scaleMode, config);
+
+        // Read first, the index may finish loading while the existence check runs
+        UUDataCache cache = UUDataCache.sharedInstance();
+        boolean indexLoaded = cache.isIndexLoaded();
+
+        if (!indexLoaded || cache.doesDataExist(key))
         {
             Bitmap cached = memoryCache.get(photoKey);
             if (cached != null)
             {
+                revalidateIfExpired(key);
                 return cached;
             }
             else
             {
-                UUThread.runOnBackgroundThread(() ->
+                // Callers of this method find out through the DataDownloaded notification.
+                // Until the index has loaded it is not known whether the image is on disk,
+                // so the decode thread finds out and downloads it if it is missing.
+                queueDecode(key, targetWidth, targetHeight, scaleMode, config, null, true, (!indexLoaded && !skipDownload));
+                return null;
+            }
+        }
+        else if (!skipDownload)
+        {
+            UURemoteData.sharedInstance().getData(key);
+        }
+
+        return null;
+    }
+
+    /**
+     * Fetches an image, downloading and decoding it as needed.  Requests for the same image
+     * and size share one download and one decode.
+     *
+     * @param key lookup key
+     * @param targetWidth width to sample the image down to, or null for full size
+     * @param targetHeight height to sample the image down to, or null for full size
+     * @param delegate receives the image, or null if it could not be fetched.  Invoked right
+     *                 away on the calling thread on a memory cache hit and on a background
+     *                 thread otherwise.
+     */
+    public void getImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final UUObjectDelegate<Bitmap> delegate)
+    {
+        getImage(key, targetWidth, targetHeight, ScaleMode.Fill, null, delegate);
+    }
+
+    /**
+     * Fetches an image, downloading and decoding it as needed.  Requests for the same image,
+     * size, scale mode and pixel format share one download and one decode.
+     *
+     * @param key lookup key
+     * @param targetWidth width to size the image to, or null for full size
+     * @param targetHeight height to size the image to, or null for full size
+     * @param scaleMode how the image is sized to the target.  Images are never scaled up.
+     * @param config pixel format to decode to, or null for ARGB_8888.  RGB_565 halves the memory
+     *               of opaque images such as JPEGs.
+     * @param delegate receives the image, or null if it could not be fetched.  Invoked right
+     *                 away on the calling thread on a memory cache hit and on a background
+     *                 thread otherwise.
+     */
+    public void getImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config, @NonNull final UUObjectDelegate<Bitmap> delegate)
+    {
+        String photoKey = getPhotoKey(key, targetWidth, targetHeight, scaleMode, config);
+
+        Bitmap cached = memoryCache.get(photoKey);
+        if (cached != null)
+        {
+            revalidateIfExpired(key);
+            UUObjectDelegate.safeInvoke(delegate, cached);
+            return;
+        }
+
+        if (UUDataCache.sharedInstance().doesDataExist(key))
+        {
+            queueDecode(key, targetWidth, targetHeight, scaleMode, config, delegate, false, false);
+            return;
+        }
+
+        DecodeRequest download = null;
+
+        synchronized (pendingDecodes)
+        {
+            DecodeRequest request = pendingDecodes.get(photoKey);
+            if (request != null)
+            {
+                request.delegates.add(delegate);
+                return;
+            }
+
+            request = new DecodeRequest(key, targetWidth, targetHeight, scaleMode, config, photoKey);
+            request.delegates.add(delegate);
+            request.downloadDelegate = data -> handleImageData(photoKey, data != null);
+            pendingDecodes.put(photoKey, request);
+            download = request;
+        }
+
+        UURemoteData.sharedInstance().getData(key, UURemoteData.Priority.Visible, download.downloadDelegate);
+    }
+
+    /**
+     * Stops waiting for an image requested with a delegate.  Once nobody is waiting for an
+     * image, a decode that has not started yet is dropped, as is its place in the download
+     * queue.
+     *
+     * @param delegate the delegate passed to getImage
+     * @return true if the delegate was waiting
+     */
+    public boolean cancelImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final UUObjectDelegate<Bitmap> delegate)
+    {
+        return cancelImage(key, targetWidth, targetHeight, ScaleMode.Fill, null, delegate);
+    }
+
+    /**
+     * Stops waiting for an image requested with a scale mode and pixel format
+     *
+     * @param delegate the delegate passed to getImage
+     * @return true if the delegate was waiting
+     */
+    public boolean cancelImage(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config, @NonNull final UUObjectDelegate<Bitmap> delegate)
+    {
+        String photoKey = getPhotoKey(key, targetWidth, targetHeight, scaleMode, config);
+        DecodeRequest cancelled = null;
+        boolean removed;
+
+        synchronized (pendingDecodes)
+        {
+            DecodeRequest request = pendingDecodes.get(photoKey);
+            if (request == null)
+            {
+                return false;
+            }
+
+            removed = request.delegates.remove(delegate);
+
+            if (request.delegates.isEmpty() && !request.notify && !request.started)
+            {
+                pendingDecodes.remove(photoKey);
+                cancelled = request;
+            }
+        }
+
+        if (cancelled != null)
+        {
+            if (cancelled.task != null)
+            {
+                decodeExecutor.remove(cancelled.task);
+            }
+
+            if (cancelled.downloadDelegate != null)
+            {
+                UURemoteData.sharedInstance().cancelDownload(key, cancelled.downloadDelegate);
+            }
+        }
+
+        return removed;
+    }
+
+    private void queueDecode(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config, @Nullable final UUObjectDelegate<Bitmap> delegate, final boolean notify, final boolean downloadIfMissing)
+    {
+        String photoKey = getPhotoKey(key, targetWidth, targetHeight, scaleMode, config);
+        DecodeRequest submit = null;
+
+        synchronized (pendingDecodes)
+        {
+            DecodeRequest request = pendingDecodes.get(photoKey);
+            if (request == null)
+            {
+                request = new DecodeRequest(key, targetWidth, targetHeight, scaleMode, config, photoKey);
+                pendingDecodes.put(photoKey, request);
+                submit = request;
+            }
+
+            if (delegate != null)
+            {
+                request.delegates.add(delegate);
+            }
+
+            request.notify |= notify;
+            request.downloadIfMissing |= downloadIfMissing;
+        }
+
+        if (submit != null)
+        {
+            submitDecode(submit);
+        }
+    }
+
+    private void submitDecode(@NonNull final DecodeRequest request)
+    {
+        synchronized (pendingDecodes)
+        {
+            request.task = () -> runDecode(request);
+        }
+
+        decodeExecutor.execute(request.task);
+    }
+
+    /**
+     * Picks a request up again once the download it was waiting on has finished
+     */
+    private void handleImageData(@NonNull final String photoKey, final boolean available)
+    {
+        DecodeRequest request;
+
+        synchronized (pendingDecodes)
+        {
+            request = pendingDecodes.get(photoKey);
+            if (request == null)
+            {
+                return;
+            }
+
+            request.downloadDelegate = null;
+
+            if (!available)
+            {
+                pendingDecodes.remove(photoKey);
+            }
+        }
+
+        if (available)
+        {
+            submitDecode(request);
+        }
+        else
+        {
+            completeDecode(request, null);
+        }
+    }
+
+    private void runDecode(@NonNull final DecodeRequest request)
+    {
+        synchronized (pendingDecodes)
+        {
+            // Cancelled while it sat in the queue
+            if (pendingDecodes.get(request.photoKey) != request)
+            {
+                return;
+            }
+
+            request.started = true;
+        }
+
+        Bitmap bitmap = null;
+
+        try
+        {
+            bitmap = decodeImage(request);
+            if (bitmap != null)
+            {
+                // Cached before the request goes away, so a new request finds it there
+                memoryCache.add(request.photoKey, bitmap);
+                revalidateIfExpired(request.key);
+            }
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "runDecode", ex);
+        }
+        catch (OutOfMemoryError err)
+        {
+            // A failed decode like any other, and the pool gives back what it holds
+            UULog.error(getClass(), "runDecode", err);
+            bitmapPool.clear();
+            bitmap = null;
+            request.thumbnail = null;
+        }
+        finally
+        {
+            if (bitmap == null && request.missing && request.downloadIfMissing)
+            {
+                downloadMissingImage(request);
+            }
+            else
+            {
+                // Whatever happened the key has to be freed, or later requests wait on it forever
+                synchronized (pendingDecodes)
                 {
-                    File file = UUDataCache.sharedInstance().getDiskFileName(key);
+                    pendingDecodes.remove(request.photoKey);
+                }
 
-                    BitmapFactory.Options opt = new BitmapFactory.Options();
-                    opt.inJustDecodeBounds = true;
-                    BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
-                    updateMetaDataIfNeeded(key, opt);
+                completeDecode(request, bitmap);
+            }
+        }
 
-                    opt.inJustDecodeBounds = false;
-                    opt.inSampleSize = getSampleSize(opt, targetWidth, targetHeight);
+        final Bitmap thumbnail = request.thumbnail;
+        if (thumbnail != null)
+        {
+            request.thumbnail = null;
+            thumbnailThread.post(() -> saveThumbnail(request, thumbnail));
+        }
+    }
 
-                    Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
-                    memoryCache.add(photoKey, bitmap);
-                    UURemoteData.sharedInstance().notifyDataDownloaded(key);
-                });
+    /**
+     * Queues a background download of an expired original.  Expired images with a validator
+     * are kept on disk and decode as usual, so without this they would never be refreshed.
+     * The download revalidates them with a conditional request.
+     */
+    private void revalidateIfExpired(@NonNull final String key)
+    {
+        if (UUDataCache.sharedInstance().isDataExpired(key))
+        {
+            // Off the calling thread, fetching expired data can touch the disk
+            decodeExecutor.execute(() -> UURemoteData.sharedInstance().getData(key, UURemoteData.Priority.Background));
+        }
+    }
 
-                return null;
+    /**
+     * Downloads an image the decode found missing from disk, then decodes it again
+     */
+    private void downloadMissingImage(@NonNull final DecodeRequest request)
+    {
+        synchronized (pendingDecodes)
+        {
+            // Only once, and the request can be cancelled again while it waits
+            request.downloadIfMissing = false;
+            request.missing = false;
+            request.started = false;
+            request.downloadDelegate = data -> handleImageData(request.photoKey, data != null);
+        }
+
+        UURemoteData.sharedInstance().getData(request.key, UURemoteData.Priority.Visible, request.downloadDelegate);
+    }
+
+    private void completeDecode(@NonNull final DecodeRequest request, @Nullable final Bitmap bitmap)
+    {
+        ArrayList<UUObjectDelegate<Bitmap>> delegates;
+        boolean notify;
+
+        synchronized (pendingDecodes)
+        {
+            delegates = new ArrayList<>(request.delegates);
+            notify = request.notify;
+        }
+
+        if (bitmap != null && notify)
+        {
+            UURemoteData.sharedInstance().notifyDataDownloaded(request.key);
+        }
+
+        for (UUObjectDelegate<Bitmap> delegate : delegates)
+        {
+            UUObjectDelegate.safeInvoke(delegate, bitmap);
+        }
+    }
+
+    @Nullable
+    private Bitmap decodeImage(@NonNull final DecodeRequest request)
+    {
+        String key = request.key;
+        Integer targetWidth = request.targetWidth;
+        Integer targetHeight = request.targetHeight;
+        boolean useThumbnail = (thumbnailsEnabled && targetWidth != null && targetHeight != null);
+
+        if (useThumbnail)
+        {
+            request.sourceTimestamp = UUDataCache.sharedInstance().getDataTimestamp(key);
+
+            Bitmap bitmap = loadThumbnail(request);
+            if (bitmap != null)
+            {
+                return bitmap;
             }
         }
-        else if (!skipDownload)
+
+        File file = UUDataCache.sharedInstance().getDiskFileName(key);
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+        updateMetaDataIfNeeded(key, opt);
+
+        // A full decode overwrites these with the size of the result
+        int sourceWidth = opt.outWidth;
+        int sourceHeight = opt.outHeight;
+
+        opt.inJustDecodeBounds = false;
+        opt.inPreferredConfig = (request.config != null ? request.config : Bitmap.Config.ARGB_8888);
+        setScaleOptions(opt, targetWidth, targetHeight, request.scaleMode);
+
+        Bitmap bitmap = decodeBitmap(file, null, opt);
+        if (bitmap == null && !file.exists())
         {
-            UURemoteData.sharedInstance().getData(key);
+            // The existence check is served from memory, so drop stale entries
+            // here to let the next request download the image again
+            UUDataCache.sharedInstance().removeData(key);
+            request.missing = true;
+        }
+
+        if (bitmap != null && request.scaleMode == ScaleMode.Crop)
+        {
+            bitmap = cropBitmap(bitmap, targetWidth, targetHeight);
+        }
+
+        if (bitmap != null && useThumbnail && (bitmap.getWidth() < sourceWidth || bitmap.getHeight() < sourceHeight))
+        {
+            request.thumbnail = getThumbnailSource(bitmap);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Decodes from a file or a buffer, drawing into a pooled bitmap when reuse is on
+     */
+    @Nullable
+    private Bitmap decodeBitmap(@Nullable final File file, @Nullable final byte[] data, @NonNull final BitmapFactory.Options opt)
+    {
+        Bitmap reusable = null;
+        if (memoryCache.getPool() != null)
+        {
+            // Decoded bitmaps have to be mutable to be reused once they are evicted
+            opt.inMutable = true;
+
+            Bitmap.Config config = (opt.inPreferredConfig != null ? opt.inPreferredConfig : Bitmap.Config.ARGB_8888);
+            reusable = bitmapPool.get(getDecodedByteCount(opt, config), config);
+            opt.inBitmap = reusable;
+        }
+
+        Bitmap bitmap;
+
+        try
+        {
+            bitmap = decodeBitmapOnce(file, data, opt);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            if (reusable == null)
+            {
+                throw ex;
+            }
+
+            // The decoder rounded the sample size differently than estimated and the
+            // pooled bitmap is too small, so decode into a new one
+            opt.inBitmap = null;
+            bitmap = decodeBitmapOnce(file, data, opt);
+        }
+
+        if (reusable != null && bitmap != reusable)
+        {
+            bitmapPool.put(reusable);
+        }
+
+        if (bitmap != null && opt.inDensity != 0)
+        {
+            // Density was only borrowed to scale the decode, so the result draws like any
+            // other bitmap decoded for this display
+            bitmap.setDensity(displayDensity);
+        }
+
+        return bitmap;
+    }
+
+    @Nullable
+    private Bitmap decodeBitmapOnce(@Nullable final File file, @Nullable final byte[] data, @NonNull final BitmapFactory.Options opt)
+    {
+        if (file != null)
+        {
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), opt);
+        }
+        else if (data != null)
+        {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, opt);
         }
 
         return null;
     }
 
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Thumbnails
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
     @NonNull
-    private String getPhotoKey(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    private String getThumbnailKey(@NonNull final DecodeRequest request)
+    {
+        // The pixel format is left out, any thumbnail can be decoded to any format.  As a
+        // derived key it is removed along with the original.
+        String variant = String.format(Locale.US, "thumb_%dx%d_%s", request.targetWidth, request.targetHeight, request.scaleMode.name().toLowerCase(Locale.US));
+        return UUDataCache.getDerivedKey(request.key, variant);
+    }
+
+    /**
+     * Loads a stored thumbnail.  One made from an original that has since been replaced or
+     * removed is thrown away.
+     */
+    @Nullable
+    private Bitmap loadThumbnail(@NonNull final DecodeRequest request)
+    {
+        UUDataCache cache = UUDataCache.sharedInstance();
+        String thumbnailKey = getThumbnailKey(request);
+
+        if (!cache.doesDataExist(thumbnailKey))
+        {
+            return null;
+        }
+
+        long sourceTimestamp = request.sourceTimestamp;
+        Object recorded = cache.getMetaData(thumbnailKey).get(MetaData.SourceTimestamp);
+        if (sourceTimestamp == 0 || !(recorded instanceof Number) || ((Number)recorded).longValue() != sourceTimestamp)
+        {
+            cache.removeData(thumbnailKey);
+            return null;
+        }
+
+        byte[] data = cache.getData(thumbnailKey);
+        if (data == null)
+        {
+            return null;
+        }
+
+        BitmapFactory.Options opt = new BitmapFactory.Options();
+        opt.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opt);
+        opt.inJustDecodeBounds = false;
+        opt.inPreferredConfig = (request.config != null ? request.config : Bitmap.Config.ARGB_8888);
+
+        Bitmap bitmap = decodeBitmap(null, data, opt);
+        if (bitmap == null)
+        {
+            cache.removeData(thumbnailKey);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Picks the bitmap a thumbnail is encoded from once the decode is handed out.  A reusable
+     * bitmap can be drawn over as soon as it is evicted, so the encode gets its own copy.
+     * Otherwise the decoded bitmap is immutable and is encoded as is.
+     */
+    @Nullable
+    private Bitmap getThumbnailSource(@NonNull final Bitmap bitmap)
+    {
+        if (!bitmap.isMutable())
+        {
+            return bitmap;
+        }
+
+        try
+        {
+            Bitmap.Config config = bitmap.getConfig();
+            return bitmap.copy(config != null ? config : Bitmap.Config.ARGB_8888, false);
+        }
+        catch (OutOfMemoryError err)
+        {
+            // Not worth failing the decode over, the thumbnail is made next time
+            return null;
+        }
+    }
+
+    private void saveThumbnail(@NonNull final DecodeRequest request, @NonNull final Bitmap bitmap)
+    {
+        try
+        {
+            UUDataCache cache = UUDataCache.sharedInstance();
+            long sourceTimestamp = request.sourceTimestamp;
+            if (sourceTimestamp == 0)
+            {
+                return;
+            }
+
+            Bitmap.CompressFormat format = thumbnailFormat;
+
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            if (!bitmap.compress(format, thumbnailQuality, bos))
+            {
+                return;
+            }
+
+            String thumbnailKey = getThumbnailKey(request);
+
+            // Meta data first, so the mime type is known when the data is written
+            HashMap<String, Object> md = new HashMap<>();
+            md.put(MetaData.MimeType, getThumbnailMimeType(format));
+            md.put(MetaData.SourceTimestamp, sourceTimestamp);
+            cache.setMetaData(md, thumbnailKey);
+            cache.setData(bos.toByteArray(), thumbnailKey);
+        }
+        catch (Exception ex)
+        {
+            UULog.error(getClass(), "saveThumbnail", ex);
+        }
+    }
+
+    @NonNull
+    private static String getThumbnailMimeType(@NonNull final Bitmap.CompressFormat format)
+    {
+        if (format == Bitmap.CompressFormat.PNG)
+        {
+            return "image/png";
+        }
+        else if (format == Bitmap.CompressFormat.JPEG)
+        {
+            return "image/jpeg";
+        }
+
+        return "image/webp";
+    }
+
+    @NonNull
+    private String getPhotoKey(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config)
     {
         String dimPart = "";
 
         if (targetWidth != null && targetHeight != null)
         {
-            dimPart = String.format(Locale.US, "_w%d_w%d", targetWidth, targetHeight);
+            dimPart = String.format(Locale.US, "_w%d_h%d_%s", targetWidth, targetHeight, scaleMode.name());
+        }
+
+        if (config != null)
+        {
+            dimPart = String.format(Locale.US, "%s_%s", dimPart, config.name());
         }
 
         return String.format(Locale.US, "%s%s", key, dimPart);
     }
 
-    private int getSampleSize(@NonNull BitmapFactory.Options bmOptions, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    /**
+     * Sets up a decode to come out at the exact size for the target.  The decoder first
+     * samples down by the largest power of two that does not undershoot, which it does
+     * cheaply, and the density ratio then scales the rest of the way in the same pass.
+     */
+    private void setScaleOptions(@NonNull BitmapFactory.Options bmOptions, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode)
     {
-        int scaleFactor = 1;
+        bmOptions.inSampleSize = 1;
+        bmOptions.inScaled = false;
+        bmOptions.inDensity = 0;
+        bmOptions.inTargetDensity = 0;
 
-        if (targetWidth != null && targetHeight != null)
+        if (targetWidth == null || targetHeight == null || targetWidth <= 0 || targetHeight <= 0 ||
+            bmOptions.outWidth <= 0 || bmOptions.outHeight <= 0)
+        {
+            return;
+        }
+
+        double widthScale = (double)targetWidth / bmOptions.outWidth;
+        double heightScale = (double)targetHeight / bmOptions.outHeight;
+        double scale = (scaleMode == ScaleMode.Fit ? Math.min(widthScale, heightScale) : Math.max(widthScale, heightScale));
+
+        if (scale >= 1.0)
+        {
+            return;
+        }
+
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1.0)
+        {
+            sampleSize *= 2;
+        }
+
+        bmOptions.inSampleSize = sampleSize;
+
+        int targetDensity = (int)Math.round(scale * sampleSize * SCALE_DENSITY);
+        if (targetDensity < SCALE_DENSITY)
+        {
+            bmOptions.inScaled = true;
+            bmOptions.inDensity = SCALE_DENSITY;
+            bmOptions.inTargetDensity = targetDensity;
+        }
+    }
+
+    /**
+     * Cuts a bitmap that covers the target down to the target size, keeping the center
+     */
+    @NonNull
+    private Bitmap cropBitmap(@NonNull final Bitmap bitmap, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight)
+    {
+        if (targetWidth == null || targetHeight == null)
         {
-            scaleFactor = Math.min(bmOptions.outWidth / targetWidth, bmOptions.outHeight / targetHeight);
+            return bitmap;
         }
 
-        return scaleFactor;
+        int width = Math.min(bitmap.getWidth(), targetWidth);
+        int height = Math.min(bitmap.getHeight(), targetHeight);
+        if (width == bitmap.getWidth() && height == bitmap.getHeight())
+        {
+            return bitmap;
+        }
+
+        Bitmap cropped = Bitmap.createBitmap(bitmap, (bitmap.getWidth() - width) / 2, (bitmap.getHeight() - height) / 2, width, height);
+
+        UUBitmapPool pool = memoryCache.getPool();
+        if (pool != null && cropped != bitmap)
+        {
+            // Nobody else has seen the uncropped bitmap, so it can go straight back
+            pool.put(bitmap);
+        }
+
+        return cropped;
+    }
+
+    private int getDecodedByteCount(@NonNull BitmapFactory.Options bmOptions, @NonNull final Bitmap.Config config)
+    {
+        int sampleSize = Math.max(1, bmOptions.inSampleSize);
+        int width = (bmOptions.outWidth + sampleSize - 1) / sampleSize;
+        int height = (bmOptions.outHeight + sampleSize - 1) / sampleSize;
+
+        if (bmOptions.inScaled && bmOptions.inDensity != 0 && bmOptions.inTargetDensity != 0)
+        {
+            // Matches the rounding the decoder does when it scales
+            float scale = (float)bmOptions.inTargetDensity / bmOptions.inDensity;
+            width = (int)(width * scale + 0.5f);
+            height = (int)(height * scale + 0.5f);
+        }
+
+        int bytesPerPixel = 4;
+        if (config == Bitmap.Config.ALPHA_8)
+        {
+            bytesPerPixel = 1;
+        }
+        else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+        {
+            bytesPerPixel = 2;
+        }
+
+        return width * height * bytesPerPixel;
     }
 
     private void updateMetaDataIfNeeded(@NonNull final String key, BitmapFactory.Options opt)
@@ -203,8 +1048,52 @@ public class UURemoteImage
     }
 
 
+    /**
+     * One image at one size that somebody is waiting for
+     */
+    private static class DecodeRequest
+    {
+        final String key;
+        final Integer targetWidth;
+        final Integer targetHeight;
+        final ScaleMode scaleMode;
+        final Bitmap.Config config;
+        final String photoKey;
+        final ArrayList<UUObjectDelegate<Bitmap>> delegates = new ArrayList<>();
+
+        // Someone is waiting for the DataDownloaded notification rather than a delegate
+        boolean notify;
+        boolean started;
+
+        // Queued before it was known whether the image is on disk.  If the decode finds it
+        // missing, it is downloaded instead of failing.
+        boolean downloadIfMissing;
+        boolean missing;
+        Runnable task;
+        UUObjectDelegate<byte[]> downloadDelegate;
+
+        // Decoded smaller than the original, to be stored as a thumbnail once handed out
+        Bitmap thumbnail;
+
+        // Write time of the original, read before its file is opened so a thumbnail is never
+        // recorded against a newer original than the one it was made from
+        long sourceTimestamp;
+
+        DecodeRequest(@NonNull final String key, @Nullable final Integer targetWidth, @Nullable final Integer targetHeight, @NonNull final ScaleMode scaleMode, @Nullable final Bitmap.Config config, @NonNull final String photoKey)
+        {
+            this.key = key;
+            this.targetWidth = targetWidth;
+            this.targetHeight = targetHeight;
+            this.scaleMode = scaleMode;
+            this.config = config;
+            this.photoKey = photoKey;
+        }
+    }
+
     static class MemoryCache extends LruCache<String, Bitmap>
     {
+        private volatile UUBitmapPool pool;
+
         MemoryCache(final int cacheSize)
         {
             super(cacheSize);
@@ -214,8 +1103,20 @@ public class UURemoteImage
         protected int sizeOf(String key, Bitmap value)
         {
             // The cache size will be measured in kilobytes rather than
-            // number of items.
-            return value.getByteCount() / 1024;
+            // number of items.  A reused bitmap can be bigger than the
+            // image drawn into it, so count everything it holds.
+            return value.getAllocationByteCount() / 1024;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue)
+        {
+            UUBitmapPool bitmapPool = pool;
+            if (evicted && bitmapPool != null)
+            {
+                bitmapPool.put(oldValue);
+                trimPool(bitmapPool);
+            }
         }
 
         void add(@NonNull final String key, @NonNull final Bitmap bitmap)
@@ -223,7 +1124,32 @@ public class UURemoteImage
             if (get(key) == null)
             {
                 put(key, bitmap);
+
+                UUBitmapPool bitmapPool = pool;
+                if (bitmapPool != null)
+                {
+                    trimPool(bitmapPool);
+                }
             }
         }
+
+        @Nullable
+        UUBitmapPool getPool()
+        {
+            return pool;
+        }
+
+        void setPool(@Nullable final UUBitmapPool pool)
+        {
+            this.pool = pool;
+        }
+
+        /**
+         * Shrinks the pool to whatever part of the budget the cache is not using
+         */
+        private void trimPool(@NonNull final UUBitmapPool bitmapPool)
+        {
+            bitmapPool.trimToSize(Math.max(0, (long)(maxSize() - size()) * 1024));
+        }
     }
 }
\ No newline at end of file
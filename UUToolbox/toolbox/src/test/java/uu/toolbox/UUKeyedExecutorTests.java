@@ -0,0 +1,45 @@
+package uu.toolbox;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import uu.toolbox.core.UUKeyedExecutor;
+
+public class UUKeyedExecutorTests
+{
+    @Test
+    public void errorDoesNotStallKey() throws Exception
+    {
+        UUKeyedExecutor executor = new UUKeyedExecutor("UUKeyedExecutorTests", 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch queuedRan = new CountDownLatch(1);
+        final CountDownLatch laterRan = new CountDownLatch(1);
+
+        executor.execute("key", () ->
+        {
+            try
+            {
+                blocker.await();
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            throw new OutOfMemoryError("Expected by test");
+        });
+
+        // Queued behind the failing task, so it is handed on when the Error escapes
+        executor.execute("key", queuedRan::countDown);
+        blocker.countDown();
+
+        Assert.assertTrue("Expect work queued behind an Error to run", queuedRan.await(5, TimeUnit.SECONDS));
+
+        executor.execute("key", laterRan::countDown);
+        Assert.assertTrue("Expect later work for the key to run", laterRan.await(5, TimeUnit.SECONDS));
+    }
+}
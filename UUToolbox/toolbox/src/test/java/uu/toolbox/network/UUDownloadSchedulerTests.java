@@ -0,0 +1,140 @@
+package uu.toolbox.network;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+public class UUDownloadSchedulerTests
+{
+    private static final String HOST_A = "http://a.thisisaurl.com/";
+    private static final String HOST_B = "http://b.thisisaurl.com/";
+
+    @Test
+    public void priorityOrder() throws Exception
+    {
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(10, 10);
+        scheduler.enqueue(HOST_A + "background", UURemoteData.Priority.Background);
+        scheduler.enqueue(HOST_A + "prefetch", UURemoteData.Priority.Prefetch);
+        scheduler.enqueue(HOST_A + "visible_1", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_A + "visible_2", UURemoteData.Priority.Visible);
+
+        Assert.assertEquals("Expect newest visible request first", HOST_A + "visible_2", scheduler.dequeue());
+        Assert.assertEquals(HOST_A + "visible_1", scheduler.dequeue());
+        Assert.assertEquals(HOST_A + "prefetch", scheduler.dequeue());
+        Assert.assertEquals(HOST_A + "background", scheduler.dequeue());
+        Assert.assertNull(scheduler.dequeue());
+    }
+
+    @Test
+    public void requeueRaisesPriority() throws Exception
+    {
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(10, 10);
+        scheduler.enqueue(HOST_A + "one", UURemoteData.Priority.Background);
+        scheduler.enqueue(HOST_A + "two", UURemoteData.Priority.Prefetch);
+        scheduler.enqueue(HOST_A + "one", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_A + "one", UURemoteData.Priority.Background);
+
+        Assert.assertEquals("Expect a queued key to keep its highest priority", HOST_A + "one", scheduler.dequeue());
+        Assert.assertEquals(HOST_A + "two", scheduler.dequeue());
+        Assert.assertEquals(0, scheduler.queuedCount());
+    }
+
+    @Test
+    public void cancel() throws Exception
+    {
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(10, 10);
+        scheduler.enqueue(HOST_A + "one", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_A + "two", UURemoteData.Priority.Visible);
+
+        Assert.assertTrue(scheduler.cancel(HOST_A + "two"));
+        Assert.assertFalse(scheduler.cancel(HOST_A + "two"));
+        Assert.assertEquals(HOST_A + "one", scheduler.dequeue());
+        Assert.assertFalse("Expect active downloads to not be cancellable", scheduler.cancel(HOST_A + "one"));
+        Assert.assertNull(scheduler.dequeue());
+    }
+
+    @Test
+    public void perHostLimit() throws Exception
+    {
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(10, 2);
+        scheduler.enqueue(HOST_A + "1", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_A + "2", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_A + "3", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_B + "1", UURemoteData.Priority.Background);
+
+        ArrayList<String> started = new ArrayList<>();
+        String key;
+        while ((key = scheduler.dequeue()) != null)
+        {
+            started.add(key);
+        }
+
+        Assert.assertEquals(3, started.size());
+        Assert.assertTrue("Expect another host to run while the first is saturated", started.contains(HOST_B + "1"));
+        Assert.assertTrue(scheduler.isQueued(HOST_A + "1"));
+
+        scheduler.complete(HOST_A + "3");
+        Assert.assertEquals(HOST_A + "1", scheduler.dequeue());
+    }
+
+    @Test
+    public void overallLimit() throws Exception
+    {
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(1, 10);
+        scheduler.enqueue(HOST_A + "1", UURemoteData.Priority.Visible);
+        scheduler.enqueue(HOST_B + "1", UURemoteData.Priority.Visible);
+
+        Assert.assertEquals(HOST_B + "1", scheduler.dequeue());
+        Assert.assertNull(scheduler.dequeue());
+        Assert.assertFalse("Expect an active key to not be queued again", scheduler.enqueue(HOST_B + "1", UURemoteData.Priority.Visible));
+
+        scheduler.complete(HOST_B + "1");
+        Assert.assertEquals(HOST_A + "1", scheduler.dequeue());
+    }
+
+    @Test
+    public void saturatedHostIsSkippedCheaply() throws Exception
+    {
+        final int keyCount = 20000;
+        UUDownloadScheduler scheduler = new UUDownloadScheduler(10, 2);
+
+        for (int i = 0; i < keyCount; i++)
+        {
+            scheduler.enqueue(HOST_A + i, UURemoteData.Priority.Visible);
+        }
+
+        Assert.assertEquals(HOST_A + (keyCount - 1), scheduler.dequeue());
+        Assert.assertEquals(HOST_A + (keyCount - 2), scheduler.dequeue());
+
+        scheduler.enqueue(HOST_B + "1", UURemoteData.Priority.Background);
+        Assert.assertEquals("Expect the other host to run past the saturated one", HOST_B + "1", scheduler.dequeue());
+
+        // Scanning the saturated host's queue on every call would take hundreds of millions of steps here
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < keyCount; i++)
+        {
+            Assert.assertNull(scheduler.dequeue());
+            scheduler.enqueue(HOST_A + i, UURemoteData.Priority.Visible);
+        }
+
+        Assert.assertTrue("Expect dequeue to skip the saturated host without a scan", (System.currentTimeMillis() - start) < 2000);
+        Assert.assertEquals(keyCount - 2, scheduler.queuedCount());
+
+        scheduler.complete(HOST_A + (keyCount - 1));
+        Assert.assertEquals("Expect the newest request once a slot frees up", HOST_A + (keyCount - 3), scheduler.dequeue());
+        Assert.assertNull(scheduler.dequeue());
+
+        scheduler.complete(HOST_B + "1");
+        scheduler.complete(HOST_A + (keyCount - 2));
+        scheduler.complete(HOST_A + (keyCount - 3));
+        Assert.assertEquals(keyCount - 3, scheduler.queuedCount());
+        Assert.assertNotNull(scheduler.dequeue());
+        Assert.assertNotNull(scheduler.dequeue());
+        Assert.assertNull(scheduler.dequeue());
+
+        Assert.assertEquals(keyCount - 5, scheduler.clear().size());
+        Assert.assertNull(scheduler.dequeue());
+    }
+}
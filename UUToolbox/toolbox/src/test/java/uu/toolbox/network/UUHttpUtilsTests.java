@@ -0,0 +1,45 @@
+package uu.toolbox.network;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+
+public class UUHttpUtilsTests
+{
+    @Test
+    public void parseMaxAge() throws Exception
+    {
+        Assert.assertEquals(-1, UUHttpUtils.parseMaxAge(null));
+        Assert.assertEquals(-1, UUHttpUtils.parseMaxAge("public"));
+        Assert.assertEquals(3600, UUHttpUtils.parseMaxAge("max-age=3600"));
+        Assert.assertEquals(60, UUHttpUtils.parseMaxAge("public, MAX-AGE=60, must-revalidate"));
+        Assert.assertEquals(120, UUHttpUtils.parseMaxAge("max-age=\"120\""));
+        Assert.assertEquals(0, UUHttpUtils.parseMaxAge("max-age=-5"));
+        Assert.assertEquals(-1, UUHttpUtils.parseMaxAge("max-age=soon"));
+    }
+
+    @Test
+    public void parseNoCache() throws Exception
+    {
+        Assert.assertEquals(0, UUHttpUtils.parseMaxAge("no-cache"));
+        Assert.assertEquals(0, UUHttpUtils.parseMaxAge("max-age=600, no-store"));
+    }
+
+    @Test
+    public void parseContentRangeStart() throws Exception
+    {
+        Assert.assertEquals(-1, UUHttpUtils.parseContentRangeStart(null));
+        Assert.assertEquals(100, UUHttpUtils.parseContentRangeStart("bytes 100-999/1000"));
+        Assert.assertEquals(0, UUHttpUtils.parseContentRangeStart("Bytes 0-9/*"));
+        Assert.assertEquals(-1, UUHttpUtils.parseContentRangeStart("bytes */1000"));
+        Assert.assertEquals(-1, UUHttpUtils.parseContentRangeStart("items 1-2/3"));
+    }
+
+    @Test
+    public void parseContentLength() throws Exception
+    {
+        Assert.assertEquals(-1, UUHttpUtils.parseContentLength(null));
+        Assert.assertEquals(1048576, UUHttpUtils.parseContentLength(" 1048576 "));
+        Assert.assertEquals(-1, UUHttpUtils.parseContentLength("large"));
+    }
+}